@@ -0,0 +1,85 @@
+#!/usr/bin/env python3
+"""Writes the benchmark schematics, run it from this directory to regenerate them.
+
+Uses the same format Schematics.write does: "msch", version 1, then deflated
+width, height, tags, block names and tiles with TypeIO configs.
+"""
+import random
+import struct
+import zlib
+
+# ids of the first few items, in mindustry's content order
+items = range(0, 16)
+small_blocks = ["conveyor", "titanium-conveyor", "router", "junction", "sorter", "copper-wall", "solar-panel", "battery", "power-node", "bridge-conveyor"]
+large_blocks = ["mechanical-drill", "pneumatic-drill", "graphite-press", "silicon-smelter", "kiln"]
+
+
+def utf(text):
+    data = text.encode()
+    return struct.pack(">H", len(data)) + data
+
+
+def config(value):
+    if value is None:
+        return b"\x00"
+    kind, data = value
+    if kind == "item":
+        return struct.pack(">bbh", 5, 0, data)
+    if kind == "point":
+        return struct.pack(">bii", 7, *data)
+    if kind == "points":
+        return struct.pack(">bb", 8, len(data)) + b"".join(struct.pack(">i", (x << 16) | (y & 0xffff)) for x, y in data)
+    raise ValueError(kind)
+
+
+def write(path, name, width, height, tiles):
+    blocks = list(dict.fromkeys(tile[0] for tile in tiles))
+    tags = {"name": name, "description": "benchmark schematic", "labels": "[]"}
+
+    body = struct.pack(">hh", width, height)
+    body += struct.pack(">b", len(tags)) + b"".join(utf(k) + utf(v) for k, v in tags.items())
+    body += struct.pack(">b", len(blocks)) + b"".join(utf(block) for block in blocks)
+    body += struct.pack(">i", len(tiles))
+    for block, x, y, value, rotation in tiles:
+        body += struct.pack(">bi", blocks.index(block), (x << 16) | (y & 0xffff)) + config(value) + struct.pack(">b", rotation)
+
+    with open(path, "wb") as file:
+        file.write(b"msch" + bytes([1]) + zlib.compress(body))
+
+
+def factory(size, seed):
+    """mix of 2x2 crafters and drills, conveyors, bridges and linked power nodes"""
+    rand = random.Random(seed)
+    tiles, nodes = [], []
+
+    for cx in range(0, size, 2):
+        for cy in range(0, size, 2):
+            if rand.random() < 0.3:
+                tiles.append((rand.choice(large_blocks), cx, cy, None, 0))
+                continue
+
+            for x, y in ((cx, cy), (cx + 1, cy), (cx, cy + 1), (cx + 1, cy + 1)):
+                block = rand.choice(small_blocks)
+                value = None
+                if block == "sorter":
+                    value = ("item", rand.choice(items))
+                elif block == "bridge-conveyor":
+                    value = ("point", (3, 0))
+                elif block == "power-node":
+                    links = [(nx - x, ny - y) for nx, ny in nodes[-12:] if abs(nx - x) <= 6 and abs(ny - y) <= 6][:4]
+                    value = ("points", links)
+                    nodes.append((x, y))
+                tiles.append((block, x, y, value, rand.randrange(4)))
+
+    return tiles
+
+
+def pixel_art(width, height):
+    """sorters only, so it also gets the pixel art next to it"""
+    return [("sorter", x, y, ("item", (x * 3 + y * 5) // 7 % len(items)), 0) for x in range(width) for y in range(height)]
+
+
+write("small.msch", "small", 12, 12, factory(12, 1))
+write("medium.msch", "medium", 50, 50, factory(50, 2))
+write("huge.msch", "huge", 120, 120, factory(120, 3))
+write("pixel-art.msch", "pixel art", 64, 48, pixel_art(64, 48))
@@ -0,0 +1,86 @@
+package schematichandler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Draws one sprite per tile of a square schematic at quality 4, the way the block pass does for axis aligned sprites.
+ * Compares the batch's old transformed draw and a plain {@link Graphics2D#drawImage} against {@link Blitter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlitBenchmark{
+    /** schematic width and height in tiles */
+    @Param({"100", "200"})
+    public int tiles;
+
+    private final int spriteSize = 32;
+    private BufferedImage canvas;
+    private Graphics2D graphics;
+    private BufferedImage[] sprites;
+
+    @Setup
+    public void setup(){
+        canvas = new BufferedImage(tiles * spriteSize, tiles * spriteSize, BufferedImage.TYPE_INT_ARGB);
+        graphics = canvas.createGraphics();
+
+        // mix of opaque, transparent and partially transparent pixels like block sprites have
+        var random = new Random(0);
+        sprites = new BufferedImage[16];
+        for(int i = 0; i < sprites.length; i++){
+            sprites[i] = new BufferedImage(spriteSize, spriteSize, BufferedImage.TYPE_INT_ARGB);
+            for(int x = 0; x < spriteSize; x++){
+                for(int y = 0; y < spriteSize; y++){
+                    int edge = Math.min(Math.min(x, y), Math.min(spriteSize - 1 - x, spriteSize - 1 - y));
+                    int alpha = edge == 0 ? 0 : edge == 1 ? 128 + random.nextInt(64) : 255;
+                    sprites[i].setRGB(x, y, (alpha << 24) | (random.nextInt() & 0xffffff));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public BufferedImage transformed(){
+        for(int x = 0; x < tiles; x++){
+            for(int y = 0; y < tiles; y++){
+                var at = new AffineTransform();
+                at.translate(x * spriteSize, y * spriteSize);
+                at.rotate(-((x * y) & 3) * 90f * (float)(Math.PI / 180), spriteSize / 2f, spriteSize / 2f);
+
+                graphics.setTransform(at);
+                graphics.drawImage(sprites[(x + y) & 15], 0, 0, spriteSize, spriteSize, null);
+            }
+        }
+        graphics.setTransform(new AffineTransform());
+        return canvas;
+    }
+
+    @Benchmark
+    public BufferedImage graphics(){
+        for(int x = 0; x < tiles; x++){
+            for(int y = 0; y < tiles; y++){
+                graphics.drawImage(sprites[(x + y) & 15], x * spriteSize, y * spriteSize, null);
+            }
+        }
+        return canvas;
+    }
+
+    @Benchmark
+    public BufferedImage blitter(){
+        for(int x = 0; x < tiles; x++){
+            for(int y = 0; y < tiles; y++){
+                Blitter.blit(sprites[(x + y) & 15], canvas, x * spriteSize, y * spriteSize);
+            }
+        }
+        return canvas;
+    }
+}
@@ -0,0 +1,28 @@
+package schematichandler;
+
+import java.io.*;
+
+/** Schematics the benchmarks run against, see <code>bench/corpus/generate.py</code> */
+public class Corpus{
+    /** 12x12 factory */
+    public static final String small = "small";
+    /** 50x50 factory */
+    public static final String medium = "medium";
+    /** 120x120 factory, big enough for culling and the shadow to matter */
+    public static final String huge = "huge";
+    /** 64x48 sorters, the only one that gets pixel art */
+    public static final String pixelArt = "pixel-art";
+
+    /**
+     * @param name name of the schematic, without .msch
+     * @return schematic file contents
+     */
+    public static byte[] read(String name){
+        try(var stream = Corpus.class.getClassLoader().getResourceAsStream(name + ".msch")){
+            if(stream == null) throw new FileNotFoundException(name + ".msch is not in the corpus");
+            return stream.readAllBytes();
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package schematichandler;
+
+import arc.util.serialization.*;
+import mindustry.game.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Reading schematics, from base64 like they are usually posted, and from the file into everything that's reported about them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark{
+    @Param({Corpus.small, Corpus.medium, Corpus.huge, Corpus.pixelArt})
+    public String schematic;
+
+    private byte[] data;
+    private String base64;
+
+    @Setup
+    public void setup(){
+        Schematic.init();
+        data = Corpus.read(schematic);
+        base64 = new String(Base64Coder.encode(data));
+    }
+
+    @Benchmark
+    public mindustry.game.Schematic readBase64(){
+        return Schematics.readBase64(base64);
+    }
+
+    @Benchmark
+    public Schematic metadata() throws IOException{
+        return new Schematic(data, false);
+    }
+
+    @Benchmark
+    public Object plans() throws IOException{
+        return new Schematic(data, false).plans();
+    }
+}
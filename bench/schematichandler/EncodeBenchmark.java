@@ -0,0 +1,53 @@
+package schematichandler;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Encoding finished previews, {@link PngWriter} at a few settings against ImageIO
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class EncodeBenchmark{
+    @Param({Corpus.small, Corpus.medium, Corpus.huge, Corpus.pixelArt})
+    public String schematic;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setup() throws IOException{
+        Schematic.init();
+        var preview = new Schematic(Corpus.read(schematic), false);
+        preview.layout(Schematic.maxRenderSize);
+        image = preview.render();
+    }
+
+    @Benchmark
+    public long previewer() throws IOException{
+        return PngWriter.encode(image, OutputStream.nullOutputStream(), Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    @Benchmark
+    public long previewerFast() throws IOException{
+        return PngWriter.encode(image, OutputStream.nullOutputStream(), 1, 1);
+    }
+
+    @Benchmark
+    public long previewerParallel() throws IOException{
+        return PngWriter.encode(image, OutputStream.nullOutputStream(), Deflater.DEFAULT_COMPRESSION, 4);
+    }
+
+    @Benchmark
+    public boolean imageio() throws IOException{
+        return ImageIO.write(image, "png", OutputStream.nullOutputStream());
+    }
+}
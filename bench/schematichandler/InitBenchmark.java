@@ -0,0 +1,22 @@
+package schematichandler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Startup cost, loading content and the sprite atlas in a fresh jvm.
+ * Arc and mindustry snapshot bumps tend to show up here first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class InitBenchmark{
+    @Benchmark
+    public void init(){
+        Schematic.init();
+    }
+}
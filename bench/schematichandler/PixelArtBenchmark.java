@@ -0,0 +1,29 @@
+package schematichandler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+/** Pixel art on its own, only sorter schematics get it */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PixelArtBenchmark{
+    private Schematic preview;
+
+    @Setup
+    public void setup() throws IOException{
+        Schematic.init();
+        preview = new Schematic(Corpus.read(Corpus.pixelArt), false);
+    }
+
+    @Benchmark
+    public BufferedImage pixelArt(){
+        return preview.getPixelArt();
+    }
+}
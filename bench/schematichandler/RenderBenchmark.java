@@ -0,0 +1,83 @@
+package schematichandler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+import static mindustry.Vars.*;
+
+/**
+ * Every stage of rendering a preview at full quality on its own, and all of them together.
+ * The passes draw over the same layer every time, which costs the same as drawing into an empty one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class RenderBenchmark{
+    @Param({Corpus.small, Corpus.medium, Corpus.huge, Corpus.pixelArt})
+    public String schematic;
+
+    private Schematic preview;
+    private BufferedImage layer;
+    private int size, height, previewHeight;
+
+    @Setup
+    public void setup() throws IOException{
+        Schematic.init();
+        preview = new Schematic(Corpus.read(schematic), false);
+        size = Schematic.maxRenderSize;
+        height = preview.schematic.height * size * tilesize;
+        preview.layout(size);
+        layer = preview.drawLayer(size, 0, height);
+        previewHeight = preview.render().getHeight();
+    }
+
+    @Benchmark
+    public BufferedImage regions(){
+        var ctx = new RenderContext(layer, size).begin();
+        try{
+            preview.drawRegions(ctx);
+        }finally{
+            ctx.end();
+        }
+        return layer;
+    }
+
+    @Benchmark
+    public BufferedImage bridgeConfigs(){
+        var ctx = new RenderContext(layer, size).begin();
+        try{
+            preview.drawBridgeConfigs();
+        }finally{
+            ctx.end();
+        }
+        return layer;
+    }
+
+    @Benchmark
+    public BufferedImage configs(){
+        var ctx = new RenderContext(layer, size).begin();
+        try{
+            preview.drawConfigs(ctx);
+        }finally{
+            ctx.end();
+        }
+        return layer;
+    }
+
+    /** background, shadow, border and pixel art around already drawn blocks */
+    @Benchmark
+    public BufferedImage composite(){
+        return preview.composite(layer, 0, 0, previewHeight);
+    }
+
+    @Benchmark
+    public BufferedImage render(){
+        return preview.render();
+    }
+}
@@ -0,0 +1,121 @@
+package schematichandler;
+
+import java.awt.image.*;
+
+/**
+ * Software source over compositing between {@link BufferedImage#TYPE_INT_ARGB} rasters.
+ * Uses the same 8 bit lookup tables as Java2D's IntArgb loops, so the result is identical to {@link java.awt.Graphics2D#drawImage}
+ * without any of the per call pipeline setup.
+ */
+public class Blitter{
+    /** mul[a << 8 | b] = a * b / 255, rounded */
+    private static final byte[] mul = new byte[256 * 256];
+    /** div[a << 8 | b] = b * 255 / a, rounded and capped at 255 */
+    private static final byte[] div = new byte[256 * 256];
+
+    static{
+        for(int i = 1; i < 256; i++){
+            int inc = (i << 16) + (i << 8) + i;
+            int val = inc + (1 << 23);
+            for(int j = 1; j < 256; j++){
+                mul[i << 8 | j] = (byte)(val >>> 24);
+                val += inc;
+            }
+        }
+
+        for(int i = 1; i < 256; i++){
+            long inc = ((0xffL << 24) + i / 2) / i;
+            long val = 1 << 23;
+            for(int j = 0; j < i; j++){
+                div[i << 8 | j] = (byte)(val >>> 24);
+                val += inc;
+            }
+            for(int j = i; j < 256; j++){
+                div[i << 8 | j] = (byte)255;
+            }
+        }
+    }
+
+    /** @return whether the image can be blitted to or from */
+    public static boolean supports(BufferedImage image){
+        if(image.getType() != BufferedImage.TYPE_INT_ARGB) return false;
+        var sampleModel = image.getSampleModel();
+        return sampleModel instanceof SinglePixelPackedSampleModel && ((SinglePixelPackedSampleModel)sampleModel).getScanlineStride() == image.getWidth()
+            && image.getRaster().getSampleModelTranslateX() == 0 && image.getRaster().getSampleModelTranslateY() == 0;
+    }
+
+    /**
+     * Draws an image over another one at a whole pixel offset, parts outside of the destination are clipped off
+     * @param src image to draw, must be {@link #supports(BufferedImage) supported}
+     * @param dst image to draw on, must be {@link #supports(BufferedImage) supported}
+     * @param x left edge in the destination
+     * @param y top edge in the destination
+     */
+    public static void blit(BufferedImage src, BufferedImage dst, int x, int y){
+        blit(data(src), src.getWidth(), src.getHeight(), data(dst), dst.getWidth(), dst.getHeight(), x, y);
+    }
+
+    public static void blit(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight, int x, int y){
+        int startX = Math.max(0, -x), startY = Math.max(0, -y);
+        int endX = Math.min(srcWidth, dstWidth - x), endY = Math.min(srcHeight, dstHeight - y);
+
+        for(int sy = startY; sy < endY; sy++){
+            int si = sy * srcWidth + startX;
+            int di = (sy + y) * dstWidth + startX + x;
+
+            for(int sx = startX; sx < endX; sx++, si++, di++){
+                int s = src[si];
+                int srcA = s >>> 24;
+
+                if(srcA == 0) continue;
+                if(srcA == 0xff){
+                    // most of a block sprite is opaque, copy the whole run at once
+                    int run = 1;
+                    while(sx + run < endX && (src[si + run] >>> 24) == 0xff) run++;
+                    System.arraycopy(src, si, dst, di, run);
+                    sx += run - 1;
+                    si += run - 1;
+                    di += run - 1;
+                    continue;
+                }
+
+                int d = dst[di];
+                int dstF = mul(0xff - srcA, d >>> 24);
+                int resA = srcA + dstF;
+                int resR = mul(srcA, (s >>> 16) & 0xff), resG = mul(srcA, (s >>> 8) & 0xff), resB = mul(srcA, s & 0xff);
+
+                if(dstF != 0){
+                    int dstR = (d >>> 16) & 0xff, dstG = (d >>> 8) & 0xff, dstB = d & 0xff;
+                    if(dstF < 0xff){
+                        dstR = mul(dstF, dstR);
+                        dstG = mul(dstF, dstG);
+                        dstB = mul(dstF, dstB);
+                    }
+                    resR += dstR;
+                    resG += dstG;
+                    resB += dstB;
+                }
+
+                if(resA < 0xff){
+                    resR = div(resA, resR);
+                    resG = div(resA, resG);
+                    resB = div(resA, resB);
+                }
+
+                dst[di] = (resA << 24) | (resR << 16) | (resG << 8) | resB;
+            }
+        }
+    }
+
+    static int[] data(BufferedImage image){
+        return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static int mul(int a, int b){
+        return mul[a << 8 | b] & 0xff;
+    }
+
+    private static int div(int a, int b){
+        return div[a << 8 | b] & 0xff;
+    }
+}
@@ -0,0 +1,168 @@
+package schematichandler;
+
+import arc.struct.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * Schematics straight out of a zip of .msch files or a text file with a base64 schematic on every line, without extracting anything.
+ * Zip entries are read from the {@link ZipFile}, base64 is decoded right out of a memory mapped copy of the text file, so no string is
+ * made for any line. Schematics are only read once {@link Entry#read()} is called, entries can be read from several threads.
+ */
+public class BulkInput implements Closeable{
+    static private final byte[] zipMagic = {'P', 'K', 3, 4};
+    /** value of every base64 character, -1 for anything else */
+    static private final byte[] base64 = new byte[128];
+
+    static{
+        java.util.Arrays.fill(base64, (byte)-1);
+        var chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for(int i = 0; i < chars.length(); i++) base64[chars.charAt(i)] = (byte)i;
+    }
+
+    /** schematics in the input, in the order they are in */
+    public final Seq<Entry> entries = new Seq<>();
+    private final ZipFile zip;
+    private final MappedByteBuffer text;
+
+    /** a schematic in the input */
+    public class Entry{
+        /** where it came from, <code>archive.zip!/entry.msch</code> or <code>list.txt:line</code> */
+        public final String path;
+        /** what to call its preview, without an extension */
+        public final String name;
+        private final ZipEntry entry;
+        /** the line of base64, end exclusive */
+        private final int start, end;
+
+        Entry(String path, String name, ZipEntry entry, int start, int end){
+            this.path = path;
+            this.name = name;
+            this.entry = entry;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** @return the raw schematic file, like {@link Schematic#readBytes(String)} */
+        public byte[] read() throws IOException{
+            if(entry == null) return decode(text, start, end);
+
+            try(var stream = zip.getInputStream(entry)){
+                return entry.getSize() >= 0 ? stream.readNBytes((int)entry.getSize()) : stream.readAllBytes();
+            }
+        }
+    }
+
+    /**
+     * Lists every schematic in a zip or a base64 file, they are read later
+     * @param path zip, or text file with a base64 schematic on every line. Blank lines are skipped
+     */
+    public BulkInput(Path path) throws IOException{
+        var file = path.toString();
+
+        if(isZip(path)){
+            zip = new ZipFile(path.toFile());
+            text = null;
+            var names = new java.util.HashSet<String>();
+            var zipEntries = zip.entries();
+            while(zipEntries.hasMoreElements()){
+                var entry = zipEntries.nextElement();
+                if(entry.isDirectory() || !entry.getName().endsWith(".msch")) continue;
+
+                // entries can be in directories (or try to get out of one), previews all go in the same one
+                var name = entry.getName().substring(0, entry.getName().length() - ".msch".length()).replace('/', '_').replace('\\', '_');
+                // a/b.msch and a_b.msch would end up as the same file, later ones get their index
+                if(!names.add(name)){
+                    var base = name;
+                    for(int i = entries.size; !names.add(name); i++) name = base + "-" + i;
+                }
+                entries.add(new Entry(file + "!/" + entry.getName(), name, entry, 0, 0));
+            }
+            return;
+        }
+
+        zip = null;
+
+        try(var channel = FileChannel.open(path, StandardOpenOption.READ)){
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException(file + " is bigger than 2GB, split it up");
+            // stays mapped after the channel is closed
+            text = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int start = 0, line = 1;
+        for(int i = 0; i <= text.limit(); i++){
+            if(i < text.limit() && text.get(i) != '\n') continue;
+
+            if(!isBlank(text, start, i)) entries.add(new Entry(file + ":" + line, String.valueOf(line), null, start, i));
+            start = i + 1;
+            line++;
+        }
+    }
+
+    private static boolean isZip(Path path) throws IOException{
+        try(var stream = Files.newInputStream(path)){
+            var magic = stream.readNBytes(zipMagic.length);
+            return java.util.Arrays.equals(magic, zipMagic);
+        }
+    }
+
+    private static boolean isBlank(ByteBuffer text, int start, int end){
+        for(int i = start; i < end; i++){
+            if(!Character.isWhitespace(text.get(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a base64 schematic out of the text, without copying it anywhere first
+     * @param start first byte of the base64
+     * @param end byte after the last one
+     * @return the raw schematic file
+     */
+    static byte[] decode(ByteBuffer text, int start, int end) throws IOException{
+        // counted first so the schematic is decoded right into an array of its size
+        int chars = 0, first = -1;
+        for(int i = start; i < end; i++){
+            int c = text.get(i) & 0xff;
+            if(c < 128 && base64[c] >= 0){
+                if(first < 0) first = i;
+                chars++;
+            }else if(c != '=' && !Character.isWhitespace(c)){
+                throw new IOException("Either the schematic is inaccessible or provided base64 is invalid");
+            }
+        }
+        if(chars == 0 || !startsWith(text, first, end, Schematic.header)) throw new IOException("Either the schematic is inaccessible or provided base64 is invalid");
+
+        var data = new byte[chars * 6 / 8];
+        int bits = 0, count = 0, out = 0;
+        for(int i = first; i < end && out < data.length; i++){
+            int c = text.get(i) & 0xff;
+            if(c >= 128 || base64[c] < 0) continue;
+
+            bits = (bits << 6 | base64[c]) & 0xffffff;
+            count += 6;
+            if(count >= 8){
+                count -= 8;
+                data[out++] = (byte)(bits >> count);
+            }
+        }
+        return data;
+    }
+
+    private static boolean startsWith(ByteBuffer text, int start, int end, String prefix){
+        if(end - start < prefix.length()) return false;
+        for(int i = 0; i < prefix.length(); i++){
+            if(text.get(start + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException{
+        if(zip != null) zip.close();
+    }
+}
@@ -0,0 +1,47 @@
+package schematichandler;
+
+import java.util.concurrent.*;
+
+/**
+ * Time a preview has to be done by, set with <code>--timeout</code>.
+ * Rendering checks it between passes and while drawing sprites and gives up once it's past, so a single huge or broken schematic can't
+ * hold up every other one.
+ */
+public class Deadline{
+    /** never runs out, used when there is no timeout */
+    public static final Deadline none = new Deadline(false, 0);
+    public static final String message = "Schematic took too long to render";
+
+    private final boolean on;
+    /** {@link System#nanoTime()} it runs out at */
+    private final long end;
+
+    private Deadline(boolean on, long end){
+        this.on = on;
+        this.end = end;
+    }
+
+    /**
+     * @param ms milliseconds from now, 0 or less for no deadline
+     * @return deadline that runs out that far from now
+     */
+    public static Deadline in(long ms){
+        return ms > 0 ? new Deadline(true, System.nanoTime() + ms * 1000000) : none;
+    }
+
+    /** @return whether it ran out */
+    public boolean passed(){
+        return on && System.nanoTime() - end > 0;
+    }
+
+    /** @return milliseconds until it runs out, at least 1, {@link Long#MAX_VALUE} if it never does */
+    public long remainingMs(){
+        if(!on) return Long.MAX_VALUE;
+        return Math.max(1, (end - System.nanoTime()) / 1000000);
+    }
+
+    /** cancels whatever is being rendered if it ran out */
+    public void check(){
+        if(passed()) throw new CancellationException(message);
+    }
+}
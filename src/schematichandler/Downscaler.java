@@ -0,0 +1,134 @@
+package schematichandler;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Shrinks an image by averaging everything each destination pixel covers, in premultiplied alpha so transparent pixels don't darken edges.
+ * Source rows can be given a few at a time, so banded previews can be shrunk while they are written.
+ */
+public class Downscaler{
+    public final int srcWidth, srcHeight, width, height;
+    public final BufferedImage image;
+
+    /** source pixels per destination pixel */
+    private final float scaleX, scaleY;
+    /** destination column every source column starts in and how much of it lands there, the rest goes into the next one */
+    private final int[] column;
+    private final float[] weight;
+
+    /** premultiplied sums of the destination row being filled and the one after it */
+    private float[] current, next;
+    /** one source row shrunk horizontally */
+    private final float[] shrunk;
+    private final int[] row, out;
+    private int srcRow, dstRow;
+
+    public Downscaler(int srcWidth, int srcHeight, int width, int height){
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.width = width;
+        this.height = height;
+        scaleX = (float)srcWidth / width;
+        scaleY = (float)srcHeight / height;
+
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        column = new int[srcWidth];
+        weight = new float[srcWidth];
+        for(int x = 0; x < srcWidth; x++){
+            int col = Math.min((int)(x / scaleX), width - 1);
+            column[x] = col;
+            weight[x] = col == width - 1 ? 1f : Math.min(1f, (col + 1) * scaleX - x);
+        }
+
+        current = new float[width * 4];
+        next = new float[width * 4];
+        shrunk = new float[width * 4];
+        row = new int[srcWidth];
+        out = new int[width];
+    }
+
+    /** @return bytes a downscaler allocates, the shrunk image included */
+    static long memUsed(int srcWidth, int width, int height){
+        // column, weight and row for every source column, three rows of sums and the row being written
+        return (long)width * height * 4 + srcWidth * 12L + width * 4L * 4 * 3 + width * 4L;
+    }
+
+    /**
+     * Adds the next rows of the source
+     * @param band rows to add, as wide as the source
+     */
+    public void write(BufferedImage band){
+        for(int y = 0; y < band.getHeight() && srcRow < srcHeight; y++, srcRow++){
+            band.getRGB(0, y, srcWidth, 1, row, 0, srcWidth);
+            shrinkRow();
+
+            // the row covers srcRow until srcRow + 1, split it between the destination rows it overlaps
+            float end = (dstRow + 1) * scaleY;
+            float inCurrent = dstRow == height - 1 ? 1f : Math.min(1f, end - srcRow);
+            add(current, inCurrent);
+            if(inCurrent < 1f) add(next, 1f - inCurrent);
+
+            if(srcRow + 1 >= end - 1e-4f && dstRow < height - 1) finishRow();
+        }
+    }
+
+    /** @return the shrunk image, after every source row was written */
+    public BufferedImage finish(){
+        while(dstRow < height) finishRow();
+        return image;
+    }
+
+    private void shrinkRow(){
+        Arrays.fill(shrunk, 0f);
+        for(int x = 0; x < srcWidth; x++){
+            int argb = row[x];
+            float a = argb >>> 24;
+            if(a == 0) continue;
+
+            float p = a / 255f;
+            float r = ((argb >> 16) & 0xff) * p, g = ((argb >> 8) & 0xff) * p, b = (argb & 0xff) * p;
+            int i = column[x] * 4;
+            float w = weight[x];
+
+            shrunk[i] += a * w;
+            shrunk[i + 1] += r * w;
+            shrunk[i + 2] += g * w;
+            shrunk[i + 3] += b * w;
+            if(w < 1f){
+                shrunk[i + 4] += a * (1f - w);
+                shrunk[i + 5] += r * (1f - w);
+                shrunk[i + 6] += g * (1f - w);
+                shrunk[i + 7] += b * (1f - w);
+            }
+        }
+    }
+
+    private void add(float[] to, float amount){
+        for(int i = 0; i < to.length; i++) to[i] += shrunk[i] * amount;
+    }
+
+    private void finishRow(){
+        float area = scaleX * scaleY;
+        for(int x = 0; x < width; x++){
+            int i = x * 4;
+            float a = current[i] / area;
+            out[x] = 0;
+            if(a < 0.5f) continue;
+
+            // sums of premultiplied colors divided by the alpha sum give the average color
+            float unpremultiply = 255f / current[i];
+            int r = Math.min(255, (int)(current[i + 1] * unpremultiply + 0.5f));
+            int g = Math.min(255, (int)(current[i + 2] * unpremultiply + 0.5f));
+            int b = Math.min(255, (int)(current[i + 3] * unpremultiply + 0.5f));
+            out[x] = (Math.min(255, (int)(a + 0.5f)) << 24) | (r << 16) | (g << 8) | b;
+        }
+        image.setRGB(0, dstRow, width, 1, out, 0, width);
+
+        var filled = current;
+        current = next;
+        next = filled;
+        Arrays.fill(next, 0f);
+        dstRow++;
+    }
+}
@@ -0,0 +1,64 @@
+package schematichandler;
+
+import arc.func.*;
+import com.google.gson.*;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Least recently used cache of images, bounded by the memory their pixels take up.
+ * @param <K> key type
+ */
+public class ImageCache<K>{
+    private final LinkedHashMap<K, BufferedImage> images = new LinkedHashMap<>(64, 0.75f, true);
+    private final long maxBytes;
+    private long bytes;
+
+    private long hits, misses;
+
+    /** @param maxBytes the cache evicts the least recently used images once their pixels take up more than this */
+    public ImageCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key key of the image
+     * @param create creates the image if it is not cached
+     * @return cached or newly created image
+     */
+    public synchronized BufferedImage get(K key, Prov<BufferedImage> create){
+        var image = images.get(key);
+        if(image != null){
+            hits++;
+            return image;
+        }
+
+        misses++;
+        image = create.get();
+        images.put(key, image);
+        bytes += sizeOf(image);
+
+        var it = images.values().iterator();
+        while(bytes > maxBytes && images.size() > 1){
+            bytes -= sizeOf(it.next());
+            it.remove();
+        }
+
+        return image;
+    }
+
+    public synchronized JsonObject stats(){
+        var obj = new JsonObject();
+        obj.addProperty("hits", hits);
+        obj.addProperty("misses", misses);
+        obj.addProperty("hitRate", hits + misses == 0 ? 0 : (double)hits / (hits + misses));
+        obj.addProperty("entries", images.size());
+        obj.addProperty("bytes", bytes);
+        return obj;
+    }
+
+    private static long sizeOf(BufferedImage image){
+        return (long)image.getWidth() * image.getHeight() * 4;
+    }
+}
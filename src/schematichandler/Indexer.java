@@ -0,0 +1,90 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads the metadata of every schematic in a directory, zip or base64 list without rendering anything, for building search indexes.
+ * Files are read on a work stealing pool and every result is printed as its own json line as soon as it's done.
+ */
+public class Indexer{
+    private final PrintStream out;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param out results, one json object per line, in the order they finish
+     * @param threads schematics read at the same time
+     */
+    public Indexer(PrintStream out, int threads){
+        this.out = out;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Indexes every .msch file in a directory and its subdirectories, or everything in a {@link BulkInput}
+     * @param source directory, zip or text file with a base64 schematic on every line
+     * @return amount of schematics indexed
+     */
+    public int index(Path source) throws IOException{
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+
+        if(Files.isDirectory(source)){
+            try(var files = Files.walk(source)){
+                files.filter(file -> file.toString().endsWith(".msch") && Files.isRegularFile(file)).forEach(file ->
+                    tasks.add(pool.submit(() -> print(file.toString(), () -> Files.readAllBytes(file))))
+                );
+            }
+            tasks.forEach(ForkJoinTask::join);
+        }else{
+            // entries can be read from several threads, the input is only closed once all of them are done
+            try(var input = new BulkInput(source)){
+                for(var entry : input.entries){
+                    tasks.add(pool.submit(() -> print(entry.path, entry::read)));
+                }
+                tasks.forEach(ForkJoinTask::join);
+            }
+        }
+
+        pool.shutdown();
+        return tasks.size();
+    }
+
+    private interface Source{
+        byte[] read() throws IOException;
+    }
+
+    private void print(String path, Source source){
+        JsonObject result;
+        try{
+            result = metadata(source.read());
+            result.addProperty("schematicPath", path);
+        }catch(IOException e){
+            result = new JsonObject();
+            result.addProperty("schematicPath", path);
+            result.addProperty("error", e.getMessage());
+            result.addProperty("code", SchematicHandler.SchematicErrorCodes.InvalidSchematic.ordinal());
+        }catch(RuntimeException e){
+            result = new JsonObject();
+            result.addProperty("schematicPath", path);
+            result.addProperty("error", String.valueOf(e.getMessage()));
+            result.addProperty("code", SchematicHandler.SchematicErrorCodes.Other.ordinal());
+        }
+
+        var line = SchematicHandler.gson.toJson(result);
+        synchronized(out){
+            out.println(line);
+        }
+    }
+
+    /**
+     * @param data schematic file contents
+     * @return the same data a preview without an image has, plans are never made for it
+     */
+    static JsonObject metadata(byte[] data) throws IOException{
+        return new Schematic(data, false).toJson();
+    }
+}
@@ -0,0 +1,83 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Blocks and shadows of recently rendered schematics, kept so an edited version of one only redraws what changed.
+ * See {@link Schematic#renderIncremental(Layers)}. The least recently used entries are dropped once their images take up more than
+ * the cache's size.
+ */
+public class LayerCache{
+    /** what an edited version needs from the render of a schematic */
+    public static class Layers{
+        /** the schematic that was rendered */
+        public final mindustry.game.Schematic schematic;
+        public final int renderSize;
+        /** every block, without anything around them */
+        public final BufferedImage layer;
+        /** shadow of {@link #layer}, bigger by the shadow size on every side */
+        public final BufferedImage shadow;
+
+        public Layers(mindustry.game.Schematic schematic, int renderSize, BufferedImage layer, BufferedImage shadow){
+            this.schematic = schematic;
+            this.renderSize = renderSize;
+            this.layer = layer;
+            this.shadow = shadow;
+        }
+
+        long bytes(){
+            return ((long)layer.getWidth() * layer.getHeight() + (long)shadow.getWidth() * shadow.getHeight()) * 4;
+        }
+    }
+
+    private final LinkedHashMap<String, Layers> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private long bytes;
+
+    private long hits, misses;
+
+    /** @param maxBytes the least recently used layers are dropped once they take up more than this */
+    public LayerCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key {@link PreviewCache#key(byte[], String)} of the schematic
+     * @return its layers, null if they aren't cached. They are shared, so they have to be copied before drawing on them
+     */
+    public synchronized Layers get(String key){
+        var layers = entries.get(key);
+        if(layers == null){
+            misses++;
+        }else{
+            hits++;
+        }
+        return layers;
+    }
+
+    public synchronized void put(String key, Layers layers){
+        if(layers.bytes() > maxBytes) return;
+
+        var old = entries.put(key, layers);
+        if(old != null) bytes -= old.bytes();
+        bytes += layers.bytes();
+
+        var it = entries.values().iterator();
+        while(bytes > maxBytes && it.hasNext()){
+            bytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    public synchronized JsonObject stats(){
+        var obj = new JsonObject();
+        obj.addProperty("hits", hits);
+        obj.addProperty("misses", misses);
+        obj.addProperty("entries", entries.size());
+        obj.addProperty("bytes", bytes);
+        return obj;
+    }
+}
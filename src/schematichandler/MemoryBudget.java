@@ -0,0 +1,93 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Memory that previews being rendered at the same time can take up together, a fraction of the maximum heap.
+ * Every render reserves what {@link Schematic} estimates it needs before allocating anything and gives it back once the preview is
+ * written. Renders that fit the budget wait for earlier ones to finish, renders that never could are rendered smaller instead.
+ * <p>
+ * Unlike {@link Runtime#freeMemory()} this doesn't depend on when the last gc ran or on how far the heap has grown yet.
+ * The {@link RasterPool} and the sprite caches come on top of it, they have to fit in the rest of the heap.
+ */
+public class MemoryBudget{
+    /** budget used by every preview */
+    public static MemoryBudget shared = new MemoryBudget(0.5);
+
+    public final long limit;
+    private long reserved;
+
+    private long admitted, queued, downgraded;
+    /** most that was reserved at once */
+    private long peak;
+
+    /** @param heapFraction part of the maximum heap renders can use, 0 - 1 */
+    public MemoryBudget(double heapFraction){
+        this.limit = (long)(Runtime.getRuntime().maxMemory() * Math.max(0, Math.min(1, heapFraction)));
+    }
+
+    /** @return whether a render needing this much could ever be admitted */
+    public boolean fits(long bytes){
+        return bytes <= limit;
+    }
+
+    /**
+     * Reserves memory if it's available right now
+     * @return whether it was reserved
+     */
+    public synchronized boolean tryReserve(long bytes){
+        if(reserved + bytes > limit) return false;
+        reserve(bytes);
+        admitted++;
+        return true;
+    }
+
+    /**
+     * Waits until earlier renders have given back enough memory and reserves it
+     * @param bytes memory to reserve, has to {@link #fits(long) fit}
+     * @param deadline stops waiting with a {@link CancellationException} once it's passed
+     */
+    public synchronized void reserveWaiting(long bytes, Deadline deadline) throws InterruptedException{
+        if(!fits(bytes)) throw new IllegalArgumentException(bytes + " bytes will never fit in a budget of " + limit);
+
+        if(reserved + bytes > limit){
+            queued++;
+            while(reserved + bytes > limit){
+                deadline.check();
+                wait(deadline.remainingMs());
+            }
+        }
+        reserve(bytes);
+        admitted++;
+    }
+
+    /** gives back memory from {@link #tryReserve(long)} or {@link #reserveWaiting(long, Deadline)} */
+    public synchronized void free(long bytes){
+        if(bytes <= 0) return;
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    /** counts a render that was made smaller so it fits */
+    public synchronized void downgraded(){
+        downgraded++;
+    }
+
+    private void reserve(long bytes){
+        reserved += bytes;
+        peak = Math.max(peak, reserved);
+    }
+
+    public synchronized JsonObject stats(){
+        var obj = new JsonObject();
+        obj.addProperty("limit", limit);
+        obj.addProperty("reserved", reserved);
+        obj.addProperty("peak", peak);
+        obj.addProperty("admitted", admitted);
+        obj.addProperty("queued", queued);
+        obj.addProperty("downgraded", downgraded);
+        return obj;
+    }
+}
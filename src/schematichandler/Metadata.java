@@ -0,0 +1,72 @@
+package schematichandler;
+
+import arc.struct.*;
+import com.google.gson.*;
+import mindustry.game.Schematic.*;
+import mindustry.type.*;
+import mindustry.world.blocks.power.*;
+
+/**
+ * Everything {@link Schematic#toJson()} reports about a schematic, worked out in a single pass over its tiles without making build plans.
+ * Requirements and power are the same sums {@link mindustry.game.Schematic} does in separate passes.
+ */
+public class Metadata{
+    /** blocks pixel art can be made of */
+    static final Seq<String> pixelArtBlocks = Seq.with("sorter", "inverted-sorter", "item-source");
+
+    public final mindustry.game.Schematic schematic;
+    public final ItemSeq requirements = new ItemSeq();
+    /** power per tick */
+    public float powerProduced, powerConsumed;
+    public long batteryStorage;
+    /** whether it's made of only pixel art blocks, always false if {@link Schematic#makePixelArt} is off */
+    public boolean hasPixelArt = Schematic.makePixelArt;
+
+    public Metadata(mindustry.game.Schematic schematic){
+        this.schematic = schematic;
+
+        for(Stile tile : schematic.tiles){
+            var block = tile.block;
+
+            for(ItemStack stack : block.requirements){
+                requirements.add(stack.item, stack.amount);
+            }
+
+            if(block instanceof PowerGenerator) powerProduced += ((PowerGenerator)block).powerProduction;
+            if(block.consPower != null) powerConsumed += block.consPower.usage;
+            if(block instanceof Battery) batteryStorage += block.consPower.capacity;
+
+            if(hasPixelArt && !pixelArtBlocks.contains(block.name)) hasPixelArt = false;
+        }
+    }
+
+    /**
+     * @param quality pixels per tile of the preview divided by 8
+     * @return schematic data, in the format results are printed in
+     */
+    public JsonObject toJson(Number quality){
+        var obj = new JsonObject();
+
+        var req = new JsonObject();
+        requirements.forEach(item -> req.addProperty(item.item.name, item.amount));
+
+        var labels = new JsonArray();
+        schematic.labels.forEach(labels::add);
+
+        obj.addProperty("name", schematic.name());
+        obj.addProperty("description", schematic.description());
+        obj.addProperty("blockCount", schematic.tiles.size);
+        obj.addProperty("powerProduced", powerProduced * 60f);
+        obj.addProperty("powerConsumed", powerConsumed * 60f);
+        obj.addProperty("powerStored", batteryStorage);
+        obj.addProperty("width", schematic.width);
+        obj.addProperty("height", schematic.height);
+        obj.addProperty("hasArt", hasPixelArt);
+        obj.addProperty("quality", quality);
+
+        obj.add("requirements", req);
+        obj.add("labels", labels);
+
+        return obj;
+    }
+}
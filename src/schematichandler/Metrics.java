@@ -0,0 +1,166 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Time and allocations of every stage of previewing a single schematic, turned on with <code>--metrics</code>.
+ * Stages are measured on the thread running them, threads compressing the png in parallel aren't included.
+ */
+public class Metrics{
+    /** whether new schematics get metrics */
+    public static boolean enabled = false;
+    /** does nothing, used when metrics are off */
+    public static final Metrics none = new Metrics(false);
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public enum Stage{
+        decode, plans, regions, bridgeConfigs, configs, pixelArt, shadow, background, encode,
+        /** scaling down and encoding extra outputs */
+        outputs,
+        /** drawing a minimap instead of sprites */
+        minimap
+    }
+
+    public enum Counter{
+        spriteDraws,
+        /** sprites drawn with a tint, and how many of those had to be tinted because the tinted sprite wasn't cached */
+        tints, tintMisses,
+        regionHits, regionMisses
+    }
+
+    public final boolean on;
+
+    private final long[] nanos = new long[Stage.values().length], bytes = new long[Stage.values().length];
+    private final long[] startNanos = new long[Stage.values().length], startBytes = new long[Stage.values().length];
+    private final long[] counters = new long[Counter.values().length];
+
+    private Metrics(boolean on){
+        this.on = on;
+    }
+
+    /** @return metrics for a new schematic, {@link #none} if they are off */
+    public static Metrics create(){
+        return enabled ? new Metrics(true) : none;
+    }
+
+    /** starts measuring a stage, stages can be measured several times and add up */
+    public void begin(Stage stage){
+        if(!on) return;
+        startBytes[stage.ordinal()] = allocated();
+        startNanos[stage.ordinal()] = System.nanoTime();
+    }
+
+    public void end(Stage stage){
+        if(!on) return;
+        nanos[stage.ordinal()] += System.nanoTime() - startNanos[stage.ordinal()];
+        bytes[stage.ordinal()] += allocated() - startBytes[stage.ordinal()];
+    }
+
+    public void count(Counter counter){
+        if(on) counters[counter.ordinal()]++;
+    }
+
+    /** @return time spent in every stage together in milliseconds */
+    public double totalMs(){
+        long total = 0;
+        for(long stage : nanos) total += stage;
+        return total / 1e6;
+    }
+
+    public JsonObject toJson(){
+        var stages = new JsonObject();
+        for(var stage : Stage.values()){
+            var measured = new JsonObject();
+            measured.addProperty("ms", nanos[stage.ordinal()] / 1e6);
+            measured.addProperty("bytes", bytes[stage.ordinal()]);
+            stages.add(stage.name(), measured);
+        }
+
+        var obj = new JsonObject();
+        obj.add("stages", stages);
+        obj.addProperty("totalMs", totalMs());
+        for(var counter : Counter.values()) obj.addProperty(counter.name(), counters[counter.ordinal()]);
+        return obj;
+    }
+
+    /**
+     * Adds up the metrics of a batch
+     * @param results previewed schematics, the ones without <code>metrics</code> (errors and cached ones) are skipped
+     * @return totals, percentiles of every stage and the slowest schematics
+     */
+    public static JsonObject summary(List<JsonObject> results){
+        var measured = new ArrayList<JsonObject>();
+        for(var result : results){
+            if(result.has("metrics")) measured.add(result);
+        }
+
+        var summary = new JsonObject();
+        summary.addProperty("schematics", measured.size());
+        summary.addProperty("initMs", Schematic.timeToLoad);
+
+        var stages = new JsonObject();
+        for(var stage : Stage.values()){
+            stages.add(stage.name(), percentiles(measured, m -> m.getAsJsonObject("stages").getAsJsonObject(stage.name()).get("ms").getAsDouble()));
+        }
+        summary.add("stages", stages);
+        summary.add("total", percentiles(measured, m -> m.get("totalMs").getAsDouble()));
+
+        var counters = new JsonObject();
+        for(var counter : Counter.values()){
+            long total = 0;
+            for(var result : measured) total += result.getAsJsonObject("metrics").get(counter.name()).getAsLong();
+            counters.addProperty(counter.name(), total);
+        }
+        summary.add("counters", counters);
+
+        // the ones worth looking at first when the batch is too slow
+        measured.sort(Comparator.comparingDouble((JsonObject r) -> r.getAsJsonObject("metrics").get("totalMs").getAsDouble()).reversed());
+        var slowest = new JsonArray();
+        for(var result : measured.subList(0, Math.min(5, measured.size()))){
+            var entry = new JsonObject();
+            entry.add("schematicPath", result.get("schematicPath"));
+            entry.add("totalMs", result.getAsJsonObject("metrics").get("totalMs"));
+            slowest.add(entry);
+        }
+        summary.add("slowest", slowest);
+
+        return summary;
+    }
+
+    private interface Measure{
+        double get(JsonObject metrics);
+    }
+
+    /** @return total, p50, p90, p99 and max of something measured for every schematic */
+    private static JsonObject percentiles(List<JsonObject> results, Measure measure){
+        var values = new double[results.size()];
+        double total = 0;
+        for(int i = 0; i < values.length; i++){
+            values[i] = measure.get(results.get(i).getAsJsonObject("metrics"));
+            total += values[i];
+        }
+        Arrays.sort(values);
+
+        var obj = new JsonObject();
+        obj.addProperty("totalMs", total);
+        obj.addProperty("p50", percentile(values, 0.5));
+        obj.addProperty("p90", percentile(values, 0.9));
+        obj.addProperty("p99", percentile(values, 0.99));
+        obj.addProperty("max", values.length == 0 ? 0 : values[values.length - 1]);
+        return obj;
+    }
+
+    /** nearest rank percentile of sorted values */
+    private static double percentile(double[] sorted, double fraction){
+        if(sorted.length == 0) return 0;
+        return sorted[Math.max(0, (int)Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static long allocated(){
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
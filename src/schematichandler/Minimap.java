@@ -0,0 +1,94 @@
+package schematichandler;
+
+import arc.graphics.*;
+import mindustry.game.Schematic.*;
+import mindustry.graphics.*;
+import mindustry.type.*;
+import mindustry.world.*;
+
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * One square of color per block, like the map in game.
+ * Costs a fill per tile instead of drawing sprites, so it's quick even for schematics way too big to render normally.
+ * Blocks configured to an item (sorters) get the item's color, that's what pixel art is made of.
+ */
+public class Minimap{
+    /** color of every block, from its map color or the average of its sprite */
+    static private final ConcurrentHashMap<Block, Integer> colors = new ConcurrentHashMap<>();
+    /** sprites that blocks are colored by when they don't have a map color, first one found is used */
+    static private final String[] spriteSuffixes = {"", "-0-0", "-0", "-bottom", "-top"};
+    static private final int unknown = 0xff6e7080;
+
+    /**
+     * @param schematic schematic to draw
+     * @param pixelSize pixels per tile
+     * @param border tiles of padding, half of it on every side
+     * @param background whether to fill the padding and empty tiles, otherwise they stay transparent
+     * @return the minimap
+     */
+    public static BufferedImage render(mindustry.game.Schematic schematic, int pixelSize, int border, boolean background){
+        int width = (schematic.width + border) * pixelSize, height = (schematic.height + border) * pixelSize;
+        var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] raster = Blitter.data(image);
+
+        if(background) Arrays.fill(raster, argb(Pal.darkerMetal));
+
+        for(Stile tile : schematic.tiles){
+            int color = tile.config instanceof Item ? argb(((Item)tile.config).color) : color(tile.block);
+            int size = tile.config instanceof Item ? 1 : tile.block.size;
+
+            // tiles go bottom to top
+            int x = (tile.x - (size - 1) / 2 + border / 2) * pixelSize;
+            int y = height - (tile.y + size / 2 + border / 2 + 1) * pixelSize;
+            int left = Math.max(0, x), right = Math.min(width, x + size * pixelSize);
+            int top = Math.max(0, y), bottom = Math.min(height, y + size * pixelSize);
+            if(left >= right) continue;
+
+            for(int row = top; row < bottom; row++){
+                Arrays.fill(raster, row * width + left, row * width + right, color);
+            }
+        }
+
+        return image;
+    }
+
+    /** @return memory needed for a minimap in bytes */
+    public static long memUsed(mindustry.game.Schematic schematic, int pixelSize, int border){
+        return (long)(schematic.width + border) * pixelSize * (schematic.height + border) * pixelSize * 4;
+    }
+
+    static private int color(Block block){
+        return colors.computeIfAbsent(block, b -> {
+            // map colors come from block_colors.png, which isn't loaded without a game, so an opaque black one wasn't set
+            if(b.mapColor != null && b.mapColor.a > 0f && (b.mapColor.r > 0f || b.mapColor.g > 0f || b.mapColor.b > 0f)) return argb(b.mapColor);
+
+            for(var suffix : spriteSuffixes){
+                var sprite = Schematic.findImage(b.name + suffix);
+                if(sprite != null) return average(sprite);
+            }
+            return unknown;
+        });
+    }
+
+    /** @return average opaque color of a sprite */
+    static private int average(BufferedImage sprite){
+        long r = 0, g = 0, b = 0, weight = 0;
+        for(int argb : Blitter.data(sprite)){
+            int a = argb >>> 24;
+            r += ((argb >> 16) & 0xff) * a;
+            g += ((argb >> 8) & 0xff) * a;
+            b += (argb & 0xff) * a;
+            weight += a;
+        }
+        if(weight == 0) return unknown;
+        return 0xff000000 | (int)(r / weight) << 16 | (int)(g / weight) << 8 | (int)(b / weight);
+    }
+
+    /** @return same color {@link java.awt.Color} rounds an arc color to */
+    static private int argb(Color color){
+        return (int)(color.a * 255 + 0.5f) << 24 | (int)(color.r * 255 + 0.5f) << 16 | (int)(color.g * 255 + 0.5f) << 8 | (int)(color.b * 255 + 0.5f);
+    }
+}
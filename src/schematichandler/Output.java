@@ -0,0 +1,137 @@
+package schematichandler;
+
+import arc.files.*;
+import com.google.gson.*;
+
+import javax.imageio.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Extra, usually smaller, copy of a preview written from the same render, like a thumbnail
+ */
+public class Output{
+    public final String path;
+    /** size the copy has to fit in, 0 if it doesn't matter */
+    public final int maxWidth, maxHeight;
+    /** size compared to the full preview, at most 1 */
+    public final float scale;
+    /** png or jpg */
+    public final String format;
+
+    /** size it ended up as, set once it's written */
+    public int width, height;
+    /** pixels per tile divided by 8, the same as the preview's <code>quality</code> */
+    public float quality;
+    public long size;
+
+    private Downscaler downscaler;
+
+    public Output(String path, int maxWidth, int maxHeight, float scale, String format){
+        this.path = path;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.scale = Math.min(scale, 1f);
+        this.format = format;
+    }
+
+    /**
+     * @param options object with a <code>path</code> and optionally <code>maxWidth</code>, <code>maxHeight</code>, <code>scale</code> and
+     * <code>format</code>, the format defaults to the extension of the path
+     */
+    public static Output fromJson(JsonObject options) throws IOException{
+        if(options.get("path") == null) throw new IOException("Output is missing a path");
+        var path = options.get("path").getAsString();
+
+        String format;
+        if(options.has("format")){
+            format = options.get("format").getAsString().toLowerCase();
+        }else{
+            format = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        }
+        if(format.equals("jpeg")) format = "jpg";
+        if(!format.equals("png") && !format.equals("jpg")) throw new IOException("Output format " + format + " is not supported, use png or jpg");
+
+        return new Output(path,
+            options.has("maxWidth") ? options.get("maxWidth").getAsInt() : 0,
+            options.has("maxHeight") ? options.get("maxHeight").getAsInt() : 0,
+            options.has("scale") ? options.get("scale").getAsFloat() : 1f,
+            format);
+    }
+
+    /**
+     * Works out the size of the copy, the preview is never scaled up
+     * @param previewWidth width of the full preview
+     * @param previewHeight height of the full preview
+     * @param previewQuality quality of the full preview
+     */
+    void begin(int previewWidth, int previewHeight, float previewQuality){
+        float factor = factor(previewWidth, previewHeight);
+        width = Math.max(1, Math.round(previewWidth * factor));
+        height = Math.max(1, Math.round(previewHeight * factor));
+        quality = Math.round(previewQuality * width / previewWidth * 100f) / 100f;
+        downscaler = new Downscaler(previewWidth, previewHeight, width, height);
+    }
+
+    /**
+     * Memory the copy needs from {@link #begin(int, int, float)} until it's encoded, it's held while the whole preview is rendered
+     * @param previewWidth width of the full preview
+     * @param previewHeight height of the full preview
+     * @return bytes
+     */
+    long memUsed(int previewWidth, int previewHeight){
+        float factor = factor(previewWidth, previewHeight);
+        int width = Math.max(1, Math.round(previewWidth * factor)), height = Math.max(1, Math.round(previewHeight * factor));
+        // jpgs are drawn onto an opaque copy first
+        long encode = format.equals("png") ? PngWriter.memUsed(width, Schematic.pngThreads) : (long)width * height * 4;
+        return Downscaler.memUsed(previewWidth, width, height) + encode;
+    }
+
+    private float factor(int previewWidth, int previewHeight){
+        float factor = scale;
+        if(maxWidth > 0) factor = Math.min(factor, (float)maxWidth / previewWidth);
+        if(maxHeight > 0) factor = Math.min(factor, (float)maxHeight / previewHeight);
+        return factor;
+    }
+
+    /** @param band next rows of the full preview */
+    void write(BufferedImage band){
+        downscaler.write(band);
+    }
+
+    /** encodes the copy to {@link #path} */
+    void finish() throws IOException{
+        var image = downscaler.finish();
+        downscaler = null;
+
+        Files.deleteIfExists(Paths.get(path));
+        try(var out = Fi.get(path).write()){
+            if(format.equals("png")){
+                PngWriter.encode(image, out, Schematic.pngLevel, Schematic.pngThreads);
+            }else{
+                // jpgs have no alpha
+                var rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                var g = rgb.createGraphics();
+                g.setColor(Color.black);
+                g.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+                g.drawImage(image, 0, 0, null);
+                g.dispose();
+                ImageIO.write(rgb, "jpg", out);
+            }
+        }
+        size = Files.size(Paths.get(path));
+    }
+
+    public JsonObject toJson(){
+        var obj = new JsonObject();
+        obj.addProperty("path", path);
+        obj.addProperty("format", format);
+        obj.addProperty("width", width);
+        obj.addProperty("height", height);
+        obj.addProperty("quality", quality);
+        obj.addProperty("previewSize", size);
+        return obj;
+    }
+}
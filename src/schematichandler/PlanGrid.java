@@ -0,0 +1,128 @@
+package schematichandler;
+
+import arc.func.*;
+import arc.math.geom.*;
+import arc.struct.*;
+import arc.util.*;
+import mindustry.entities.units.*;
+import mindustry.world.blocks.distribution.*;
+
+import java.util.*;
+
+/**
+ * Plans of a schematic by the tiles they cover.
+ * Blocks look through the plan list they are drawn with for their neighbours (conveyor tiling) or the blocks they link to (bridges, power
+ * nodes), which goes over every plan for every block. Given {@link #near(int)} instead of the whole list they only go over the plans
+ * that could match, in the same order, so they find the same ones.
+ */
+public class PlanGrid implements Eachable<BuildPlan>{
+    /** tiles around a block its neighbours are looked for in */
+    static private final int margin = 1;
+
+    private final Seq<BuildPlan> plans;
+    private final int width, height;
+    /** first entry of every tile, -1 if no plan covers it */
+    private final int[] heads;
+    /** plan and next entry of the same tile, for every tile covered by every plan */
+    private final IntSeq entryPlans = new IntSeq(), entryNext = new IntSeq();
+
+    /** plans found by the last {@link #near(int)} or {@link #within(int, int, int, int)} */
+    private int[] found;
+    private int foundCount;
+    /** last lookup every plan was found in, so plans covering several tiles are only added once */
+    private final int[] stamps;
+    private int stamp;
+
+    /**
+     * @param plans every plan of the schematic
+     * @param width width of the schematic
+     * @param height height of the schematic
+     */
+    public PlanGrid(Seq<BuildPlan> plans, int width, int height){
+        this.plans = plans;
+        this.width = width;
+        this.height = height;
+        heads = new int[width * height];
+        Arrays.fill(heads, -1);
+        found = new int[16];
+        stamps = new int[plans.size];
+
+        for(int i = 0; i < plans.size; i++){
+            var plan = plans.get(i);
+            int low = -(plan.block.size - 1) / 2, high = plan.block.size / 2;
+
+            for(int y = Math.max(0, plan.y + low); y <= Math.min(height - 1, plan.y + high); y++){
+                for(int x = Math.max(0, plan.x + low); x <= Math.min(width - 1, plan.x + high); x++){
+                    entryPlans.add(i);
+                    entryNext.add(heads[y * width + x]);
+                    heads[y * width + x] = entryPlans.size - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the plans a block could look for while drawing: the ones next to it, the ones its config links to and for direction
+     * bridges the ones in its range
+     * @param index index of the plan
+     * @return this grid, going over the plans that were found until the next call
+     */
+    public Eachable<BuildPlan> near(int index){
+        var plan = plans.get(index);
+        stamp++;
+        foundCount = 0;
+
+        int low = -(plan.block.size - 1) / 2, high = plan.block.size / 2;
+        int reach = margin + (plan.block instanceof DirectionBridge ? ((DirectionBridge)plan.block).range : 0);
+        add(plan.x + low - reach, plan.y + low - reach, plan.x + high + reach, plan.y + high + reach);
+
+        // links are relative to the block
+        if(plan.config instanceof Point2){
+            var link = (Point2)plan.config;
+            add(plan.x + link.x, plan.y + link.y, plan.x + link.x, plan.y + link.y);
+        }else if(plan.config instanceof Point2[]){
+            for(var link : (Point2[])plan.config){
+                add(plan.x + link.x, plan.y + link.y, plan.x + link.x, plan.y + link.y);
+            }
+        }
+
+        // same order as the full list
+        Arrays.sort(found, 0, foundCount);
+        return this;
+    }
+
+    /**
+     * Finds the plans covering any tile in a rectangle
+     * @return this grid, going over the plans that were found until the next call
+     */
+    public Eachable<BuildPlan> within(int x1, int y1, int x2, int y2){
+        stamp++;
+        foundCount = 0;
+        add(x1, y1, x2, y2);
+        Arrays.sort(found, 0, foundCount);
+        return this;
+    }
+
+    /** adds every plan covering a tile in a rectangle */
+    private void add(int x1, int y1, int x2, int y2){
+        for(int y = Math.max(0, y1); y <= Math.min(height - 1, y2); y++){
+            for(int x = Math.max(0, x1); x <= Math.min(width - 1, x2); x++){
+                for(int entry = heads[y * width + x]; entry != -1; entry = entryNext.get(entry)){
+                    int plan = entryPlans.get(entry);
+                    if(stamps[plan] == stamp) continue;
+                    stamps[plan] = stamp;
+
+                    if(foundCount == found.length) found = Arrays.copyOf(found, found.length * 2);
+                    found[foundCount++] = plan;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void each(Cons<? super BuildPlan> cons){
+        for(int i = 0; i < foundCount; i++){
+            cons.get(plans.get(found[i]));
+        }
+    }
+}
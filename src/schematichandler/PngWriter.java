@@ -0,0 +1,504 @@
+package schematichandler;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Writes a png a few rows at a time, so the whole image never has to be in memory.
+ * Rows have to be written top to bottom, {@link #finish()} has to be called after the last one.
+ * With more than one thread the image data is split into pieces that are deflated in parallel, every piece is primed with the end
+ * of the one before it so the compression ratio barely changes.
+ */
+public class PngWriter{
+    private static final byte[] signature = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int chunkSize = 64 * 1024;
+    /** uncompressed bytes deflated by each thread */
+    private static final int pieceSize = 256 * 1024;
+    /** size of the deflate window, the end of every piece is used as the dictionary for the next one */
+    private static final int dictionarySize = 32 * 1024;
+
+    private static ExecutorService pool;
+
+    /**
+     * @param width width of the png
+     * @param threads threads used for compression
+     * @return memory the writer needs besides the image, the row buffers and the pieces being compressed in parallel
+     */
+    static long memUsed(int width, int threads){
+        long rows = (long)width * 4 * 8;
+        // pieces waiting, filtered and deflated
+        long pieces = threads > 1 ? (long)pieceSize * threads * 3 : chunkSize * 2L;
+        return rows + pieces;
+    }
+
+    private final OutputStream out;
+    private final int width, height, level, threads;
+    /** bytes per pixel, 4 for rgba and 1 for palette indices */
+    private final int bpp;
+    private final ChunkStream chunks;
+
+    /** single threaded compression */
+    private Deflater deflater;
+    private DeflaterOutputStream idat;
+
+    /** unfiltered rows waiting for the threads */
+    private ByteArrayOutputStream pending;
+    /** rows in pending, and rows that were already given to the threads */
+    private int pendingRows, flushedRows;
+    /** last row given to the threads, the first pending row is filtered against it */
+    private byte[] above;
+    private byte[] dictionary;
+    private final Adler32 adler = new Adler32();
+
+    /** palette index of every color, null for rgba */
+    private final IntIntMap palette;
+
+    /** raw bytes of the previous and current row, without the filter byte */
+    private byte[] previous, current;
+    /** filter byte followed by the filtered row, one for every filter type */
+    private final byte[][] filtered = new byte[5][];
+    private final int[] argb;
+    private int rows;
+
+    /** time spent filtering and compressing */
+    public long nanos;
+
+    /**
+     * @param out stream to write to, it is not closed
+     * @param width width of the image
+     * @param height height of the image
+     * @param level deflate compression level, 0 - 9
+     * @param threads threads used for compression
+     */
+    public PngWriter(OutputStream out, int width, int height, int level, int threads) throws IOException{
+        this(out, width, height, level, threads, null);
+    }
+
+    private PngWriter(OutputStream out, int width, int height, int level, int threads, IntIntMap palette) throws IOException{
+        long start = System.nanoTime();
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.level = level;
+        this.threads = Math.max(1, threads);
+        this.palette = palette;
+        bpp = palette == null ? 4 : 1;
+
+        previous = new byte[width * bpp];
+        current = new byte[width * bpp];
+        for(int i = 0; i < filtered.length; i++){
+            filtered[i] = new byte[width * bpp + 1];
+            filtered[i][0] = (byte)i;
+        }
+        argb = new int[width];
+
+        out.write(signature);
+
+        var header = new ByteArrayOutputStream();
+        var data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8); // bit depth
+        data.writeByte(palette == null ? 6 : 3); // rgba or indexed
+        data.writeByte(0); // deflate
+        data.writeByte(0); // adaptive filtering
+        data.writeByte(0); // no interlacing
+        writeChunk(out, "IHDR", header.toByteArray(), header.size());
+
+        if(palette != null) writePalette(palette);
+
+        chunks = new ChunkStream(out, "IDAT");
+        if(this.threads == 1){
+            deflater = new Deflater(level);
+            idat = new DeflaterOutputStream(chunks, deflater, chunkSize);
+        }else{
+            pending = new ByteArrayOutputStream(pieceSize * this.threads);
+            chunks.write(zlibHeader(level));
+        }
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Encodes a whole image, as an indexed png if it has 256 colors or less
+     * @param image image to encode
+     * @param out stream to write to, it is not closed
+     * @param level deflate compression level, 0 - 9
+     * @param threads threads used for compression
+     * @return time spent encoding in nanoseconds
+     */
+    public static long encode(BufferedImage image, OutputStream out, int level, int threads) throws IOException{
+        long start = System.nanoTime();
+        var palette = palette(image);
+        long counted = System.nanoTime() - start;
+
+        var writer = new PngWriter(out, image.getWidth(), image.getHeight(), level, threads, palette);
+        writer.write(image);
+        writer.finish();
+        return counted + writer.nanos;
+    }
+
+    /** @return index of every color in the image, null if there are more than 256 */
+    static IntIntMap palette(BufferedImage image){
+        var colors = new IntIntMap(512);
+        var row = new int[image.getWidth()];
+        int last = 0;
+        boolean any = false;
+
+        for(int y = 0; y < image.getHeight(); y++){
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            for(int color : row){
+                // neighbouring pixels are usually the same color
+                if(color == last && any) continue;
+                if(colors.get(color) == -1){
+                    if(colors.size == 256) return null;
+                    colors.put(color, colors.size);
+                }
+                last = color;
+                any = true;
+            }
+        }
+
+        return colors;
+    }
+
+    /**
+     * Appends every row of an image
+     * @param image rows to write, must be as wide as the png
+     */
+    public void write(BufferedImage image) throws IOException{
+        if(image.getWidth() != width) throw new IllegalArgumentException("Expected a width of " + width + " but got " + image.getWidth());
+        if(rows + image.getHeight() > height) throw new IllegalStateException("Png only has " + height + " rows");
+        long start = System.nanoTime();
+
+        for(int y = 0; y < image.getHeight(); y++){
+            image.getRGB(0, y, width, 1, argb, 0, width);
+
+            if(palette != null){
+                for(int x = 0; x < width; x++){
+                    current[x] = (byte)palette.get(argb[x]);
+                }
+            }else{
+                for(int x = 0, i = 0; x < width; x++, i += 4){
+                    int pixel = argb[x];
+                    current[i] = (byte)(pixel >>> 16);
+                    current[i + 1] = (byte)(pixel >>> 8);
+                    current[i + 2] = (byte)pixel;
+                    current[i + 3] = (byte)(pixel >>> 24);
+                }
+            }
+
+            if(idat != null){
+                idat.write(filter(current, previous, rows == 0, bpp, filtered));
+            }else{
+                pending.write(current);
+                pendingRows++;
+                if(pending.size() >= pieceSize * threads) deflatePending(false);
+            }
+            rows++;
+
+            var swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        nanos += System.nanoTime() - start;
+    }
+
+    /** writes the remaining compressed data and ends the png */
+    public void finish() throws IOException{
+        if(rows != height) throw new IllegalStateException("Only " + rows + " out of " + height + " rows were written");
+        long start = System.nanoTime();
+
+        if(idat != null){
+            idat.finish();
+            deflater.end();
+        }else{
+            deflatePending(true);
+            chunks.write(new byte[]{(byte)(adler.getValue() >>> 24), (byte)(adler.getValue() >>> 16), (byte)(adler.getValue() >>> 8), (byte)adler.getValue()});
+        }
+        chunks.flush();
+
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Filters and deflates every pending row in pieces on multiple threads, and writes them out in order
+     * @param last whether this is the end of the image data
+     */
+    private void deflatePending(boolean last) throws IOException{
+        byte[] raw = pending.toByteArray();
+        int stride = width * bpp, count = pendingRows, firstRow = flushedRows;
+        pending.reset();
+        pendingRows = 0;
+        flushedRows += count;
+
+        int rowsPerPiece = Math.max(1, pieceSize / stride);
+        int pieces = Math.max(1, (count + rowsPerPiece - 1) / rowsPerPiece);
+        var pool = pool(threads);
+
+        // filtering only needs the row above, so every piece can be filtered on its own
+        var filteredPieces = new ArrayList<Future<byte[]>>(pieces);
+        for(int i = 0; i < pieces; i++){
+            int start = i * rowsPerPiece, end = Math.min(count, start + rowsPerPiece);
+            byte[] previousRow = start == 0 ? above : Arrays.copyOfRange(raw, (start - 1) * stride, start * stride);
+            boolean first = firstRow + start == 0;
+            filteredPieces.add(pool.submit(() -> filterRows(raw, start, end, stride, previousRow, first, bpp)));
+        }
+
+        try{
+            // then deflate them, primed with the end of the piece before
+            var deflated = new ArrayList<Future<byte[]>>(pieces);
+            byte[] dict = dictionary;
+            for(int i = 0; i < pieces; i++){
+                byte[] data = filteredPieces.get(i).get(), pieceDictionary = dict;
+                boolean finish = last && i == pieces - 1;
+                adler.update(data);
+                deflated.add(pool.submit(() -> deflate(data, 0, data.length, pieceDictionary, level, finish)));
+                dict = Arrays.copyOfRange(data, Math.max(0, data.length - dictionarySize), data.length);
+            }
+            dictionary = dict;
+
+            for(var result : deflated){
+                chunks.write(result.get());
+            }
+        }catch(InterruptedException | ExecutionException e){
+            throw new IOException("Failed to compress png", e);
+        }
+
+        if(count > 0) above = Arrays.copyOfRange(raw, (count - 1) * stride, count * stride);
+    }
+
+    /** @return rows from start until end filtered, every one prefixed with its filter byte */
+    private static byte[] filterRows(byte[] raw, int start, int end, int stride, byte[] above, boolean first, int bpp){
+        var out = new byte[(end - start) * (stride + 1)];
+        var buffers = new byte[5][stride + 1];
+        for(int i = 0; i < buffers.length; i++) buffers[i][0] = (byte)i;
+
+        var row = new byte[stride];
+        for(int y = start; y < end; y++){
+            System.arraycopy(raw, y * stride, row, 0, stride);
+            System.arraycopy(filter(row, above, first && y == start, bpp, buffers), 0, out, (y - start) * (stride + 1), stride + 1);
+            above = row;
+            row = new byte[stride];
+        }
+        return out;
+    }
+
+    /**
+     * @param dictionary end of the previous piece, null for the first one
+     * @param finish whether this is the last piece, every other one ends with a sync flush so they can be concatenated
+     * @return raw deflate data
+     */
+    private static byte[] deflate(byte[] data, int offset, int length, byte[] dictionary, int level, boolean finish){
+        var deflater = new Deflater(level, true);
+        try{
+            if(dictionary != null && dictionary.length > 0) deflater.setDictionary(dictionary);
+            deflater.setInput(data, offset, length);
+
+            var out = new ByteArrayOutputStream(length / 2 + 64);
+            var buffer = new byte[chunkSize];
+
+            if(finish){
+                deflater.finish();
+                while(!deflater.finished()){
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }else{
+                int count;
+                do{
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                }while(count == buffer.length);
+            }
+
+            return out.toByteArray();
+        }finally{
+            deflater.end();
+        }
+    }
+
+    /** @return zlib header for a stream made of raw deflate pieces */
+    private static byte[] zlibHeader(int level){
+        int cmf = 0x78; // deflate, 32k window
+        int flevel = level == Deflater.DEFAULT_COMPRESSION || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte)cmf, (byte)flg};
+    }
+
+    private static synchronized ExecutorService pool(int threads){
+        if(pool == null){
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                var thread = new Thread(r, "png-deflate");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    private void writePalette(IntIntMap palette) throws IOException{
+        var colors = new byte[palette.size * 3];
+        var alphas = new byte[palette.size];
+        boolean transparent = false;
+
+        for(int i = 0; i < palette.keys.length; i++){
+            if(palette.values[i] == -1) continue;
+            int color = palette.keys[i], index = palette.values[i];
+
+            colors[index * 3] = (byte)(color >>> 16);
+            colors[index * 3 + 1] = (byte)(color >>> 8);
+            colors[index * 3 + 2] = (byte)color;
+            alphas[index] = (byte)(color >>> 24);
+            if((color >>> 24) != 0xff) transparent = true;
+        }
+
+        writeChunk(out, "PLTE", colors, colors.length);
+        if(transparent) writeChunk(out, "tRNS", alphas, alphas.length);
+    }
+
+    /**
+     * Picks the filter with the lowest sum of absolute differences, the same heuristic libpng uses.
+     * Palette indices aren't filtered, that rarely helps them
+     * @param buffers one buffer for every filter type, starting with the filter byte
+     * @return filter byte followed by the filtered row
+     */
+    private static byte[] filter(byte[] row, byte[] above, boolean first, int bpp, byte[][] buffers){
+        int length = row.length;
+        byte[] none = buffers[0], sub = buffers[1], up = buffers[2], average = buffers[3], paeth = buffers[4];
+
+        if(bpp == 1){
+            System.arraycopy(row, 0, none, 1, length);
+            return none;
+        }
+
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+
+        for(int i = 0; i < length; i++){
+            int raw = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = first ? 0 : above[i] & 0xff;
+            int c = i >= bpp && !first ? above[i - bpp] & 0xff : 0;
+
+            byte n = (byte)raw, s = (byte)(raw - a), u = (byte)(raw - b), v = (byte)(raw - ((a + b) >> 1)), p = (byte)(raw - paeth(a, b, c));
+            none[i + 1] = n;
+            sub[i + 1] = s;
+            up[i + 1] = u;
+            average[i + 1] = v;
+            paeth[i + 1] = p;
+
+            sumNone += Math.abs(n);
+            sumSub += Math.abs(s);
+            sumUp += Math.abs(u);
+            sumAverage += Math.abs(v);
+            sumPaeth += Math.abs(p);
+        }
+
+        byte[] best = none;
+        long min = sumNone;
+        if(sumSub < min){ min = sumSub; best = sub; }
+        if(sumUp < min){ min = sumUp; best = up; }
+        if(sumAverage < min){ min = sumAverage; best = average; }
+        if(sumPaeth < min){ best = paeth; }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if(pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException{
+        var crc = new CRC32();
+        var typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        var stream = new DataOutputStream(out);
+        stream.writeInt(length);
+        stream.write(typeBytes);
+        stream.write(data, 0, length);
+        stream.writeInt((int)crc.getValue());
+    }
+
+    /** splits everything written to it into chunks of the same type */
+    static class ChunkStream extends OutputStream{
+        private final OutputStream out;
+        private final String type;
+        private final byte[] buffer = new byte[chunkSize];
+        private int size;
+
+        ChunkStream(OutputStream out, String type){
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException{
+            if(size == buffer.length) flush();
+            buffer[size++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            while(len > 0){
+                if(size == buffer.length) flush();
+                int count = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, count);
+                size += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException{
+            if(size == 0) return;
+            writeChunk(out, type, buffer, size);
+            size = 0;
+        }
+    }
+
+    /** open addressing int to int map, -1 means missing */
+    static class IntIntMap{
+        final int[] keys;
+        final int[] values;
+        int size;
+
+        IntIntMap(int capacity){
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+        }
+
+        int get(int key){
+            int mask = keys.length - 1;
+            for(int i = mix(key) & mask; ; i = (i + 1) & mask){
+                if(values[i] == -1) return -1;
+                if(keys[i] == key) return values[i];
+            }
+        }
+
+        void put(int key, int value){
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while(values[i] != -1 && keys[i] != key) i = (i + 1) & mask;
+            if(values[i] == -1) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private static int mix(int key){
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * On disk cache of rendered previews, keyed by a hash of the schematic file and the render options.
+ * Every entry is a png and the schematic data next to it, the least recently used entries are deleted once the cache is over its size.
+ */
+public class PreviewCache{
+    public final Path dir;
+    public final long maxBytes;
+
+    public final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+
+    /** size of every entry in least recently used order */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param dir directory to keep the previews in, created if it doesn't exist
+     * @param maxBytes size the cache is trimmed down to
+     */
+    public PreviewCache(Path dir, long maxBytes) throws IOException{
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+
+        // pick up entries from previous runs, oldest first
+        var existing = new ArrayList<Path>();
+        try(var files = Files.list(dir)){
+            files.filter(f -> f.toString().endsWith(".json")).forEach(existing::add);
+        }
+        existing.sort(Comparator.comparingLong(f -> f.toFile().lastModified()));
+
+        for(var json : existing){
+            var key = json.getFileName().toString().replace(".json", "");
+            var png = dir.resolve(key + ".png");
+            long size = json.toFile().length() + (Files.exists(png) ? png.toFile().length() : 0);
+            entries.put(key, size);
+            bytes += size;
+        }
+    }
+
+    /**
+     * @param data schematic file contents
+     * @param options render options, see {@link Schematic#renderOptions()}
+     * @return cache key
+     */
+    public static String key(byte[] data, String options){
+        try{
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data);
+            digest.update(options.getBytes(StandardCharsets.UTF_8));
+
+            var hex = new StringBuilder();
+            for(byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        }catch(NoSuchAlgorithmException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param key cache key
+     * @param previewPath where the cached preview should be placed, null if only the schematic data is needed
+     * @return cached schematic data, or null if it has to be rendered
+     */
+    public JsonObject get(String key, Path previewPath){
+        var json = dir.resolve(key + ".json");
+        var png = dir.resolve(key + ".png");
+
+        synchronized(this){
+            if(!entries.containsKey(key) || !Files.exists(json) || (previewPath != null && !Files.exists(png))){
+                misses.incrementAndGet();
+                return null;
+            }
+            // bump it to the front
+            entries.get(key);
+        }
+
+        try{
+            var data = SchematicHandler.gson.fromJson(Files.readString(json), JsonObject.class);
+
+            if(previewPath != null){
+                Files.deleteIfExists(previewPath);
+                try{
+                    Files.createLink(previewPath, png);
+                }catch(IOException | UnsupportedOperationException e){
+                    // different file system or no hard link support
+                    Files.copy(png, previewPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            // so recently used entries are also kept after a restart
+            var now = FileTime.fromMillis(System.currentTimeMillis());
+            Files.setLastModifiedTime(json, now);
+
+            hits.incrementAndGet();
+            return data;
+        }catch(IOException | JsonParseException e){
+            // deleted or half written by something else, render it again
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @param key cache key
+     * @param data schematic data, without the paths
+     * @param preview rendered preview, null if none was rendered
+     */
+    public void put(String key, JsonObject data, Path preview) throws IOException{
+        var json = dir.resolve(key + ".json");
+        var png = dir.resolve(key + ".png");
+
+        // write to temporary files first so other readers never see half an entry
+        if(preview != null){
+            var tmp = Files.createTempFile(dir, key, ".png.tmp");
+            Files.copy(preview, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, png, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        var tmp = Files.createTempFile(dir, key, ".json.tmp");
+        Files.writeString(tmp, SchematicHandler.gson.toJson(data));
+        Files.move(tmp, json, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long size = Files.size(json) + (preview != null ? Files.size(png) : 0);
+        var evicted = new ArrayList<String>();
+
+        synchronized(this){
+            var old = entries.put(key, size);
+            bytes += size - (old == null ? 0 : old);
+
+            var it = entries.entrySet().iterator();
+            while(bytes > maxBytes && entries.size() > 1){
+                var entry = it.next();
+                bytes -= entry.getValue();
+                evicted.add(entry.getKey());
+                it.remove();
+            }
+        }
+
+        for(var old : evicted){
+            Files.deleteIfExists(dir.resolve(old + ".json"));
+            Files.deleteIfExists(dir.resolve(old + ".png"));
+        }
+    }
+
+    /** @return hit and miss counts */
+    public JsonObject stats(){
+        var stats = new JsonObject();
+        stats.addProperty("hits", hits.get());
+        stats.addProperty("misses", misses.get());
+        synchronized(this){
+            stats.addProperty("entries", entries.size());
+            stats.addProperty("bytes", bytes);
+        }
+        return stats;
+    }
+}
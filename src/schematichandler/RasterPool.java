@@ -0,0 +1,111 @@
+package schematichandler;
+
+import com.google.gson.*;
+
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * Big int rasters that are reused between schematics instead of being allocated for every preview.
+ * Images this big are humongous allocations for G1, which are slow and make for long pauses when a lot of schematics are rendered.
+ * <p>
+ * Rasters are sized in buckets of an eighth of a power of two so images of similar sizes can share them, an image backed by a
+ * raster only uses the start of it. Rasters are cleared when they are reused, so images come out transparent like new ones.
+ */
+public class RasterPool{
+    /** pool used by every preview */
+    public static RasterPool shared = new RasterPool(Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+
+    /** smaller rasters aren't worth pooling, they are allocated quickly anyway */
+    static final int minPixels = 256 * 1024;
+    static private final int[] masks = {0xff0000, 0xff00, 0xff, 0xff000000};
+
+    /** released rasters, the most recently released ones last */
+    private final ArrayDeque<int[]> free = new ArrayDeque<>();
+    private final long maxBytes;
+    private long bytes;
+
+    private long hits, misses, bytesSaved;
+
+    /** @param maxBytes rasters kept around can't take up more than this, the ones released first are dropped */
+    public RasterPool(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param width width of the image
+     * @param height height of the image
+     * @return a transparent {@link BufferedImage#TYPE_INT_ARGB} image, {@link #release(BufferedImage) released} once it isn't used anymore
+     */
+    public BufferedImage image(int width, int height){
+        long pixels = (long)width * height;
+        if(pixels < minPixels || pixels > Integer.MAX_VALUE) return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        int length = bucket((int)pixels);
+        int[] data = take(length);
+        if(data == null){
+            data = new int[length];
+        }else{
+            Arrays.fill(data, 0, (int)pixels, 0);
+        }
+
+        var raster = Raster.createPackedRaster(new DataBufferInt(data, (int)pixels), width, height, width, masks, null);
+        return new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+    }
+
+    /**
+     * Gives the raster of an image back to the pool, the image can't be used after this
+     * @param image image from {@link #image(int, int)}, null does nothing
+     */
+    public void release(BufferedImage image){
+        if(image == null || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) return;
+        int[] data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        if(data.length < minPixels || data.length != bucket(data.length)) return;
+
+        synchronized(this){
+            long size = data.length * 4L;
+            if(size > maxBytes) return;
+
+            free.addLast(data);
+            bytes += size;
+            while(bytes > maxBytes) bytes -= free.removeFirst().length * 4L;
+        }
+    }
+
+    /** @return memory taken up by rasters waiting to be reused, it's as good as free */
+    public synchronized long pooledBytes(){
+        return bytes;
+    }
+
+    private synchronized int[] take(int length){
+        for(var it = free.descendingIterator(); it.hasNext();){
+            int[] data = it.next();
+            if(data.length == length){
+                it.remove();
+                bytes -= length * 4L;
+                hits++;
+                bytesSaved += length * 4L;
+                return data;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /** @return length of the raster used for this many pixels, at most an eighth bigger */
+    static int bucket(int pixels){
+        int shift = Math.max(0, 31 - Integer.numberOfLeadingZeros(pixels - 1) - 3);
+        int length = ((pixels - 1 >> shift) + 1) << shift;
+        return length < pixels ? pixels : length;
+    }
+
+    public synchronized JsonObject stats(){
+        var obj = new JsonObject();
+        obj.addProperty("hits", hits);
+        obj.addProperty("misses", misses);
+        obj.addProperty("hitRate", hits + misses == 0 ? 0 : (double)hits / (hits + misses));
+        obj.addProperty("bytesSaved", bytesSaved);
+        obj.addProperty("pooledBytes", bytes);
+        return obj;
+    }
+}
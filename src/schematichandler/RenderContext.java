@@ -0,0 +1,62 @@
+package schematichandler;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Render target for the sprite batch, one per schematic being rendered.
+ * The batch installed in {@link Schematic#init()} draws into the context bound to the current thread.
+ */
+public class RenderContext{
+    private static final ThreadLocal<RenderContext> current = new ThreadLocal<>();
+
+    public final BufferedImage image;
+    public final Graphics2D graphics;
+    /** pixels per world unit, what used to be the static tempSize */
+    public final int size;
+    /** whether axis aligned sprites can be composited straight into the image raster */
+    public final boolean blittable;
+    /** row of the whole schematic the top of the image is at, the image can be a band out of it */
+    public final int top;
+    /** column of the whole schematic the left of the image is at, for redrawing only part of it */
+    public final int left;
+    /** height of the whole schematic in pixels */
+    public final int fullHeight;
+    /** where sprite draws are counted */
+    public Metrics metrics = Metrics.none;
+    /** checked before every sprite is drawn */
+    public Deadline deadline = Deadline.none;
+
+    public RenderContext(BufferedImage image, int size){
+        this(image, size, 0, 0, image.getHeight());
+    }
+
+    public RenderContext(BufferedImage image, int size, int left, int top, int fullHeight){
+        this.image = image;
+        this.graphics = image.createGraphics();
+        this.size = size;
+        this.blittable = Blitter.supports(image);
+        this.left = left;
+        this.top = top;
+        this.fullHeight = fullHeight;
+    }
+
+    /** @return context the batch is currently drawing into */
+    public static RenderContext get(){
+        var ctx = current.get();
+        if(ctx == null) throw new IllegalStateException("Nothing is being rendered on this thread");
+        return ctx;
+    }
+
+    /** binds this context to the current thread */
+    public RenderContext begin(){
+        current.set(this);
+        return this;
+    }
+
+    /** unbinds this context and releases the graphics */
+    public void end(){
+        current.remove();
+        graphics.dispose();
+    }
+}
@@ -6,13 +6,14 @@ import arc.graphics.Color;
 import arc.graphics.g2d.*;
 import arc.graphics.g2d.TextureAtlas.*;
 import arc.math.*;
+import arc.math.geom.*;
 import arc.mock.*;
 import arc.struct.*;
 import arc.files.*;
+import arc.util.serialization.*;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.jidesoft.swing.*;
 import mindustry.*;
 import mindustry.core.*;
 import mindustry.ctype.*;
@@ -29,6 +30,8 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
 import java.util.zip.*;
 
 import static mindustry.Vars.*;
@@ -40,130 +43,257 @@ public class Schematic{
     public static final boolean makePixelArt = true;
 
     public static final String header = schematicBaseStart;
+    /** deflate level of written previews, 0 - 9 */
+    public static int pngLevel = Deflater.DEFAULT_COMPRESSION;
+    /** threads compressing a single preview */
+    public static int pngThreads = 1;
+    /** writes previews with {@link ImageIO} instead of {@link PngWriter} */
+    public static boolean imageioEncoder = false;
+    /** milliseconds a schematic can take to render and write before it's cancelled, 0 for no limit */
+    public static long timeout = 0;
+    /** keeps the blocks and shadow of whole renders in {@link #layers}, so edited versions can be {@link #renderIncremental rendered} from them */
+    public static boolean keepLayers = false;
     public BufferedImage image;
     public mindustry.game.Schematic schematic;
     public long batteryStorage = 0;
+    /** everything reported about the schematic besides its preview */
+    public Metadata metadata;
 
-    static private BufferedImage currentImage;
-    static private Graphics2D currentGraphics;
+    /** arc's draw state (batch color, stroke, scale) is global, so block drawing is serialized on this lock */
+    static private final Object drawLock = new Object();
+    /** configs are read through arc's single static Reads, so only one schematic is decoded at a time */
+    static private final Object decodeLock = new Object();
     static private final float bridgeOpacity = 0.75f;
     static private final ObjectMap<String, BufferedImage> regions = new ObjectMap<>();
-    static private final StringMap imageFiles = new StringMap();
+    /** team, config and alpha tinted sprites, 64MB or a 32nd of the heap */
+    static private final ImageCache<SpriteKey> tinted = new ImageCache<>(Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32));
+    /** tinted sprites already scaled and turned, ready to be drawn at a whole pixel offset, 128MB or a 16th of the heap */
+    static private final ImageCache<SpriteKey> prepared = new ImageCache<>(Math.min(128L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16));
+    static private final AffineTransform identity = new AffineTransform();
+    /** sprites packed at build time, null if they are read from the jar */
+    static private SpriteStore sprites;
+    /** name of every sprite mapped to its jar entry, only used when there are no packed sprites */
+    static private StringMap imageFiles = new StringMap();
+    /** packed sprites to read, defaults to {@link SpriteStore#defaultPath()} */
+    static public String spritesPath;
+    /** identifies the build for {@link #renderOptions()}, looked up once */
+    static private final String build = build();
+    /** decoded schematic-background.png, loaded on first use */
+    static private volatile TexturePaint background;
 
     public int pixelSize = 4;
     public int pixelArtBorderPixels = 4; // top & bottom, left & right
     public int renderSize = maxRenderSize;
+    /** rows rendered at once when the preview is too big to keep in memory, 0 if {@link #image} holds all of it */
+    public int bandHeight;
+    /** time it took to encode the preview in milliseconds, rendering bands isn't included */
+    public long encodeTime;
+    /** pixels per tile if the preview is a {@link Minimap}, 0 if it has sprites */
+    public int minimapPixels;
+    /** memory reserved from the {@link MemoryBudget} until {@link #release()} */
+    private long reserved;
+    /** cost of every stage, only measured with {@link Metrics#enabled} */
+    public final Metrics metrics = Metrics.create();
+    /** rendering and writing is cancelled with a {@link java.util.concurrent.CancellationException} after {@link #timeout} */
+    public final Deadline deadline = Deadline.in(timeout);
+    /** blocks and shadow of the preview, null unless it was rendered whole with {@link #keepLayers} */
+    public LayerCache.Layers layers;
+    /** whether only what changed since a previous version was drawn */
+    public boolean incremental;
 
-    final private Seq<String> pixelArtBlocks = Seq.with("sorter", "inverted-sorter", "item-source");
     private boolean hasPixelArt;
+    /** blocks to draw, only made once something is drawn */
+    private Seq<BuildPlan> requests;
+    /** plans by tile, made with {@link #requests} */
+    private PlanGrid grid;
+    /** indices of the plans drawn by {@link #drawBridgeConfigs()} and {@link #drawConfigs(RenderContext)} */
+    private IntSeq bridgePlans, configPlans;
+    /** whether a plan links to other blocks, those configs are drawn even when the block itself isn't in the rows being drawn */
+    private boolean[] linked;
+
+    /** size of the final preview */
+    private int previewWidth, previewHeight;
+    /** copies that will be written with the preview */
+    private final Seq<Output> outputs;
+    /** pixel art on the preview, rendered once and drawn on every band it's in */
+    private BufferedImage pixelArt;
+    /** where the blocks and the pixel art are placed on the preview */
+    private int schematicX, schematicY, artX, artY;
 
     static private boolean inited = false;
-    /** render size but static */
-    static private int tempSize = 4;
+    /** how long {@link #init()} took in milliseconds */
     static public long timeToLoad;
     static public final int maxRenderSize = 4;
+    /** pixels per tile of minimaps */
+    static public final int minimapSize = 4;
+    static private final int shadowSize = 24;
+    static private final float shadowOpacity = 0.75f;
+    /** how many times smaller the shadow is blurred, see {@link Shadow} */
+    static private final int shadowScale = 2;
+    /** tiles around a block its sprites could reach */
+    static private final int cullMargin = 2;
+    /** tiles around a linked tile a link could reach, they end in the middle of the block there */
+    static private final int linkMargin = cullMargin + 3;
+    /** band heights to try, biggest first */
+    static private final int[] bandHeights = {1024, 512, 256, 128, 64};
+
+    Schematic(byte[] data, boolean createImage) throws IOException{
+        this(data, createImage, false, null, new Seq<>());
+    }
+
+    /**
+     * @param data schematic file contents, as returned by {@link #readBytes(String)}
+     * @param createImage whether to render a preview
+     * @param minimap draw a {@link Minimap} instead of the blocks' sprites
+     * @param previous layers of an earlier version of the schematic, only what changed since then is drawn. Null to draw everything
+     * @param outputs copies {@link #write(OutputStream, Seq)} will write, their memory is reserved with the render's
+     */
+    Schematic(byte[] data, boolean createImage, boolean minimap, LayerCache.Layers previous, Seq<Output> outputs) throws IOException{
+        this.outputs = outputs;
 
-    Schematic(String path, boolean createImage) throws IOException{
         // attempt to read the schematic
-        if(Fi.get(path).exists()){
-            schematic = Schematics.read(Fi.get(path));
-        }else if(path.startsWith(header)){
-            try{
-                schematic = Schematics.readBase64(path);
-            }catch(RuntimeException e){
-                e.printStackTrace();
-                throw new IOException("Either the schematic is inaccessible or provided base64 is invalid");
+        metrics.begin(Metrics.Stage.decode);
+        try{
+            synchronized(decodeLock){
+                schematic = Schematics.read(new ByteArrayInputStream(data));
             }
-        }else{
-            throw new IOException("That schematic is no where to be found");
+        }catch(IOException | RuntimeException e){
+            // reported as an invalid schematic, a trace for every broken file in a batch would bury everything else
+            throw new IOException("Either the schematic is inaccessible or provided base64 is invalid", e);
         }
 
         // bad schematic
         if(schematic.tiles.size == 0) throw new IOException("Schematic has no blocks");
 
-        // get all the blocks in the schematic
-        Seq<BuildPlan> requests = schematic.tiles.map(t -> new BuildPlan(t.x, t.y, t.rotation, t.block, t.config));
-
-        // check if it has pixel art
-        hasPixelArt = makePixelArt;
-        requests.each(req -> {
-            if(makePixelArt && hasPixelArt && !pixelArtBlocks.contains(req.block.name)) hasPixelArt = false;
-            if (req.block instanceof Battery) {
-                batteryStorage += req.block.consPower.capacity;
-            }
-        });
+        // requirements, power and pixel art in one go, without making any plans
+        metadata = new Metadata(schematic);
+        hasPixelArt = metadata.hasPixelArt;
+        batteryStorage = metadata.batteryStorage;
+        metrics.end(Metrics.Stage.decode);
 
         // no image creation
         if(!createImage) return;
 
-        // check if it can be rendered otherwise keep reducing resolution
-        tempSize = maxRenderSize;
-        while(getMemUsed() > Runtime.getRuntime().freeMemory() && tempSize > 1) tempSize--;
-        renderSize = tempSize;
+        try{
+            if(minimap || !reserveRender()){
+                // a minimap is still better than nothing
+                if(!minimap) MemoryBudget.shared.downgraded();
+                reserveMinimap();
+
+                metrics.begin(Metrics.Stage.minimap);
+                image = Minimap.render(schematic, minimapPixels, pixelArtBorderPixels, true);
+                metrics.end(Metrics.Stage.minimap);
+                previewWidth = image.getWidth();
+                previewHeight = image.getHeight();
+                return;
+            }
 
-        if(getMemUsed() > Runtime.getRuntime().freeMemory()){
-            throw new IOException("Schematic is way to big to render even at a reduced size");
+            // bands are rendered while writing
+            if(bandHeight == 0) image = previous == null ? render() : renderIncremental(previous);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory to render");
+        }catch(IOException | RuntimeException | Error e){
+            release();
+            throw e;
         }
+    }
 
-//        System.out.printf("Will be rendering at %s:1 the size\n", String.format("%.2f", size / 4f).replace(".00", ""));
-        // empty image
-        var schematicImage = new BufferedImage(schematic.width * tempSize * tilesize, schematic.height * tempSize * tilesize, BufferedImage.TYPE_INT_ARGB);
-
-        // draw all the blocks
-        Draw.reset();
-        currentImage = schematicImage;
-        currentGraphics = schematicImage.createGraphics();
-        requests.each(req -> {
-            req.animScale = 1f;
-            req.worldContext = false;
-            req.block.drawPlanRegion(req, requests);
-            Draw.reset();
-        });
-
-        // draw bridge conveyors separately first to avoid some being over power node connections and some below
-        requests.each(req -> {
-            if(req.block instanceof ItemBridge || req.block instanceof DirectionBridge){
-                Draw.alpha(bridgeOpacity);
-                req.block.drawPlanConfigTop(req, requests);
-                Draw.reset();
+    /**
+     * Picks the best render size and band height that fits the {@link MemoryBudget} and reserves memory for it.
+     * Whole previews are rendered if they fit right now, then the biggest band at the same quality that does. If nothing at a
+     * quality fits right now but it could later, this waits for the smallest band at that quality instead of lowering it.
+     * @return whether a render was reserved, false if not even the smallest band fits the budget at all
+     */
+    private boolean reserveRender() throws InterruptedException{
+        var budget = MemoryBudget.shared;
+
+        for(int size = maxRenderSize; size >= 1; size--){
+            layout(size);
+            long waitFor = -1;
+            int waitRows = 0;
+
+            // 0 is the whole preview
+            for(int i = -1; i < bandHeights.length; i++){
+                int rows = i < 0 ? 0 : bandHeights[i];
+                long needed = memUsed(size, rows);
+                if(!budget.fits(needed)) continue;
+
+                if(budget.tryReserve(needed)){
+                    use(size, rows, needed);
+                    return true;
+                }
+                waitFor = needed;
+                waitRows = rows;
             }
-        });
 
-        // draw rest of the config
-        requests.each(req -> {
-            if(!(req.block instanceof ItemBridge || req.block instanceof DirectionBridge)){
-                req.block.drawPlanConfigTop(req, requests);
-                Draw.reset();
+            if(waitFor >= 0){
+                budget.reserveWaiting(waitFor, deadline);
+                use(size, waitRows, waitFor);
+                return true;
             }
-        });
+        }
 
-        image = schematicImage;
+        return false;
+    }
 
-        // render background
-        if(drawBackground){
-            int width = schematicImage.getWidth() + (backgroundOffset * 2);
-            int height = schematicImage.getHeight() + (backgroundOffset * 2);
+    private void use(int size, int rows, long reserved){
+        if(size < maxRenderSize) MemoryBudget.shared.downgraded();
+        renderSize = size;
+        bandHeight = rows >= previewHeight ? 0 : rows;
+        this.reserved = reserved;
+    }
 
-            int schematicOffsetX = backgroundOffset;
-            int schematicOffsetY = backgroundOffset;
+    /** reserves memory for the biggest {@link Minimap} that fits the {@link MemoryBudget} */
+    private void reserveMinimap() throws IOException, InterruptedException{
+        for(int size = minimapSize; size >= 1; size--){
+            int width = (schematic.width + pixelArtBorderPixels) * size, height = (schematic.height + pixelArtBorderPixels) * size;
+            long needed = Minimap.memUsed(schematic, size, pixelArtBorderPixels) + PngWriter.memUsed(width, pngThreads) + outputsMemUsed(width, height);
+            if(MemoryBudget.shared.fits(needed)){
+                MemoryBudget.shared.reserveWaiting(needed, deadline);
+                reserved = needed;
+                minimapPixels = size;
+                bandHeight = 0;
+                return;
+            }
+        }
 
-            BufferedImage art = null;
+        throw new IOException("Schematic is way to big to render even at a reduced size");
+    }
 
-            // render pixel arg (if it has any)
-            if(makePixelArt && hasPixelArt){
-                art = getPixelArt(requests, pixelSize, pixelArtBorderPixels);
+    /** @return pixels per tile of the preview divided by 8 */
+    public float quality(){
+        return minimapPixels > 0 ? minimapPixels / (float)tilesize : renderSize;
+    }
 
-                // calculate position of the pixel art
+    /**
+     * Works out the size of the preview and where everything goes on it
+     * @param size render size
+     */
+    void layout(int size){
+        int schemWidth = schematic.width * size * tilesize;
+        int schemHeight = schematic.height * size * tilesize;
+        int artWidth = (schematic.width + pixelArtBorderPixels) * pixelSize;
+        int artHeight = (schematic.height + pixelArtBorderPixels) * pixelSize;
 
-                if(art.getHeight() <= art.getWidth()){
-                    width -= backgroundOffset * 2;
-                    height -= 20;
+        if(drawBackground){
+            previewWidth = schemWidth + (backgroundOffset * 2);
+            previewHeight = schemHeight + (backgroundOffset * 2);
 
-                    width += art.getWidth() + 5;
-                    height += art.getHeight();
+            schematicX = backgroundOffset;
+            schematicY = backgroundOffset;
 
-                    schematicOffsetX = art.getWidth() / 3;
-                    schematicOffsetY = art.getHeight() + 20;
+            // calculate position of the pixel art
+            if(makePixelArt && hasPixelArt){
+                if(artHeight <= artWidth){
+                    previewWidth -= backgroundOffset * 2;
+                    previewHeight -= 20;
+
+                    previewWidth += artWidth + 5;
+                    previewHeight += artHeight;
+
+                    schematicX = artWidth / 3;
+                    schematicY = artHeight + 20;
                 }
 
 //                if (art.getHeight() == art.getWidth()) {
@@ -177,139 +307,678 @@ public class Schematic{
 //                    schematicOffsetY = art.getHeight() + 20;
 //                }
 
-                if(art.getHeight() > art.getWidth()){
-                    width -= backgroundOffset;
-                    height -= 10;
+                if(artHeight > artWidth){
+                    previewWidth -= backgroundOffset;
+                    previewHeight -= 10;
+
+                    previewWidth += artWidth + 20;
+
+                    schematicX = 25;
+                    schematicY = 25;
+                }
+            }
+
+            artX = previewWidth - artWidth - 4;
+            artY = 4;
+        }else{
+            // pixel art goes to the right of the schematic (no background here)
+            previewWidth = schemWidth + (makePixelArt && hasPixelArt ? artWidth : 0);
+            previewHeight = schemHeight;
+
+            schematicX = 0;
+            schematicY = 0;
+            artX = schemWidth;
+            artY = 0;
+        }
+    }
+
+    /** @return the whole preview at {@link #renderSize} */
+    BufferedImage render(){
+        // nothing to put around the blocks, so they are the preview
+        if(!drawBackground && !(makePixelArt && hasPixelArt)){
+            return drawLayer(renderSize, 0, schematic.height * renderSize * tilesize);
+        }
+        if(keepLayers && drawBackground){
+            return keep(drawLayer(renderSize, 0, schematic.height * renderSize * tilesize), null);
+        }
+        return renderBand(renderSize, 0, previewHeight);
+    }
+
+    /**
+     * Renders the whole preview, but only draws the blocks that could look different from an earlier version of the schematic. The
+     * rest of the blocks and their shadow are copied from that version's layers, so it comes out the same as {@link #render()}
+     * @param previous layers of the earlier version
+     * @return the whole preview, fully rendered if the layers don't fit or too much changed to be worth it
+     */
+    BufferedImage renderIncremental(LayerCache.Layers previous){
+        if(!keepLayers || !drawBackground || previous.renderSize != renderSize ||
+            previous.schematic.width != schematic.width || previous.schematic.height != schematic.height) return render();
+
+        var dirty = changedTiles(previous.schematic);
+        if(dirty == null) return render();
+
+        var layer = copy(previous.layer);
+        var shadow = copy(previous.shadow);
+        int tile = renderSize * tilesize, fullHeight = layer.getHeight();
+
+        for(var rect : dirty){
+            // tiles go bottom to top, rows top to bottom
+            int left = rect[0] * tile, top = fullHeight - (rect[3] + 1) * tile;
+            int right = (rect[2] + 1) * tile, bottom = fullHeight - rect[1] * tile;
+
+            var part = drawLayer(renderSize, left, top, right - left, bottom - top);
+            layer.getRaster().setRect(left, top, part.getRaster());
+            RasterPool.shared.release(part);
+        }
+
+        // only once every part is drawn, the shadow of one part can reach into the next
+        deadline.check();
+        metrics.begin(Metrics.Stage.shadow);
+        for(var rect : dirty){
+            int left = rect[0] * tile, top = fullHeight - (rect[3] + 1) * tile;
+            int right = (rect[2] + 1) * tile, bottom = fullHeight - rect[1] * tile;
+            Shadow.update(layer, shadow, left, top, right, bottom, shadowSize, shadowOpacity, shadowScale);
+        }
+        metrics.end(Metrics.Stage.shadow);
+
+        incremental = true;
+        return keep(layer, shadow);
+    }
 
-                    width += art.getWidth() + 20;
+    /**
+     * Composites the whole preview and keeps its layers in {@link #layers}
+     * @param layer every block of the schematic
+     * @param shadow shadow of the layer, null to make one
+     */
+    private BufferedImage keep(BufferedImage layer, BufferedImage shadow){
+        if(shadow == null){
+            deadline.check();
+            metrics.begin(Metrics.Stage.shadow);
+            shadow = createShadow(layer);
+            metrics.end(Metrics.Stage.shadow);
+        }
+
+        // shared with later renders through the cache, so these never go back to the pool
+        layers = new LayerCache.Layers(schematic, renderSize, layer, shadow);
+        return composite(layer, shadow, 0, 0, previewHeight);
+    }
+
+    /**
+     * Finds the parts of the schematic that could look different than in an earlier version: every block that was added, removed,
+     * turned or configured differently, the blocks next to those or linking to them (conveyors and bridges are drawn depending on
+     * what is around them), and everywhere all of those can draw, links included
+     * @param old earlier version of the schematic, the same size
+     * @return rectangles of tiles as x1, y1, x2, y2 (inclusive), not overlapping. Null if so much changed that drawing everything
+     * is quicker
+     */
+    private Seq<int[]> changedTiles(mindustry.game.Schematic old){
+        var requests = plans();
+
+        var before = new HashMap<Integer, mindustry.game.Schematic.Stile>();
+        for(var tile : old.tiles) before.put(tile.y * old.width + tile.x, tile);
+
+        // old and new versions of every block that changed
+        var changed = new Seq<mindustry.game.Schematic.Stile>();
+        for(var tile : schematic.tiles){
+            var was = before.remove(tile.y * schematic.width + tile.x);
+            if(was != null && was.block == tile.block && was.rotation == tile.rotation && Objects.deepEquals(was.config, tile.config)) continue;
+            if(was != null) changed.add(was);
+            changed.add(tile);
+        }
+        // whatever is left was removed
+        changed.addAll(before.values());
+        if(changed.size > requests.size / 2) return null;
+
+        var dirty = new Seq<int[]>();
+        var linking = new Seq<BuildPlan>();
+        int reach = 1;
+        for(var req : requests){
+            if(req.block instanceof DirectionBridge) reach = Math.max(reach, 1 + ((DirectionBridge)req.block).range);
+            if(req.config instanceof Point2 || req.config instanceof Point2[]) linking.add(req);
+        }
 
-                    schematicOffsetX = 25;
-                    schematicOffsetY = 25;
+        for(var tile : changed){
+            dirty.add(span(tile.x, tile.y, tile.block, tile.config));
+
+            // blocks that look for this one while drawing, see PlanGrid#near
+            int low = -(tile.block.size - 1) / 2, high = tile.block.size / 2;
+            int x1 = tile.x + low, y1 = tile.y + low, x2 = tile.x + high, y2 = tile.y + high;
+            grid.within(x1 - reach, y1 - reach, x2 + reach, y2 + reach).each(req -> {
+                int around = 1 + (req.block instanceof DirectionBridge ? ((DirectionBridge)req.block).range : 0);
+                int from = -(req.block.size - 1) / 2 - around, to = req.block.size / 2 + around;
+                if(req.x + from <= x2 && req.x + to >= x1 && req.y + from <= y2 && req.y + to >= y1){
+                    dirty.add(span(req.x, req.y, req.block, req.config));
                 }
+            });
+            for(var req : linking){
+                if(links(req, x1, y1, x2, y2)) dirty.add(span(req.x, req.y, req.block, req.config));
             }
+        }
+
+        // overlapping rectangles would draw the same blocks twice
+        long area = 0;
+        for(var rect : merge(dirty)){
+            rect[0] = Math.max(rect[0], 0);
+            rect[1] = Math.max(rect[1], 0);
+            rect[2] = Math.min(rect[2], schematic.width - 1);
+            rect[3] = Math.min(rect[3], schematic.height - 1);
+            area += (long)Math.max(0, rect[2] - rect[0] + 1) * Math.max(0, rect[3] - rect[1] + 1);
+        }
+        dirty.removeAll(rect -> rect[2] < rect[0] || rect[3] < rect[1]);
 
-            // shadow for the schematic blocks
-            var factory = new ShadowFactory();
-            factory.setRenderingHint(ShadowFactory.KEY_BLUR_QUALITY, ShadowFactory.VALUE_BLUR_QUALITY_HIGH);
-            factory.setColor(java.awt.Color.black);
-            factory.setOpacity(0.75f);
-            factory.setSize(24);
-            var shadow = factory.createShadow(schematicImage);
+        return area * 2 > (long)schematic.width * schematic.height ? null : dirty;
+    }
 
-            BufferedImage background = ImageIO.read(Core.files.internal("schematic-background.png").read());
-            BufferedImage withBackground = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    /** @return tiles a block can draw on as x1, y1, x2, y2 (inclusive), its links included */
+    private static int[] span(int x, int y, Block block, Object config){
+        int reach = cullMargin + (block instanceof DirectionBridge ? ((DirectionBridge)block).range : 0);
+        int low = -(block.size - 1) / 2 - reach, high = block.size / 2 + reach;
+        var span = new int[]{x + low, y + low, x + high, y + high};
+
+        // links are relative to the block
+        if(config instanceof Point2){
+            var link = (Point2)config;
+            include(span, x + link.x, y + link.y);
+        }else if(config instanceof Point2[]){
+            for(var link : (Point2[])config) include(span, x + link.x, y + link.y);
+        }
+        return span;
+    }
 
-            // make background fit schematic size (used as base image)
-            background = repeatToSize(background, width, height);
-            currentGraphics = withBackground.createGraphics();
-            currentImage = withBackground;
+    private static void include(int[] span, int x, int y){
+        span[0] = Math.min(span[0], x - linkMargin);
+        span[1] = Math.min(span[1], y - linkMargin);
+        span[2] = Math.max(span[2], x + linkMargin);
+        span[3] = Math.max(span[3], y + linkMargin);
+    }
 
+    /** @return whether a block's config links to a tile in a rectangle */
+    private static boolean links(BuildPlan req, int x1, int y1, int x2, int y2){
+        if(req.config instanceof Point2){
+            var link = (Point2)req.config;
+            return req.x + link.x >= x1 && req.x + link.x <= x2 && req.y + link.y >= y1 && req.y + link.y <= y2;
+        }else if(req.config instanceof Point2[]){
+            for(var link : (Point2[])req.config){
+                if(req.x + link.x >= x1 && req.x + link.x <= x2 && req.y + link.y >= y1 && req.y + link.y <= y2) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Joins overlapping rectangles into the rectangle around both of them until none overlap
+     * @param rects rectangles as x1, y1, x2, y2 (inclusive), joined in place
+     * @return the same list
+     */
+    private static Seq<int[]> merge(Seq<int[]> rects){
+        boolean joined = true;
+        while(joined){
+            joined = false;
+            for(int i = 0; i < rects.size; i++){
+                for(int j = rects.size - 1; j > i; j--){
+                    int[] a = rects.get(i), b = rects.get(j);
+                    if(a[0] > b[2] || b[0] > a[2] || a[1] > b[3] || b[1] > a[3]) continue;
+
+                    a[0] = Math.min(a[0], b[0]);
+                    a[1] = Math.min(a[1], b[1]);
+                    a[2] = Math.max(a[2], b[2]);
+                    a[3] = Math.max(a[3], b[3]);
+                    rects.remove(j);
+                    joined = true;
+                }
+            }
+        }
+        return rects;
+    }
+
+    /** @return a copy of an image from the {@link RasterPool} */
+    private static BufferedImage copy(BufferedImage image){
+        var copy = RasterPool.shared.image(image.getWidth(), image.getHeight());
+        copy.getRaster().setRect(image.getRaster());
+        return copy;
+    }
+
+    /**
+     * Renders a horizontal slice of the preview, only the blocks that end up in it (or its shadow) are drawn
+     * @param size render size, {@link #layout(int)} must have been called with it
+     * @param top first row of the preview to render
+     * @param rows amount of rows to render
+     * @return rows of the preview
+     */
+    private BufferedImage renderBand(int size, int top, int rows){
+        int schemHeight = schematic.height * size * tilesize;
+        // the shadow of blocks outside the band can still reach into it
+        int pad = drawBackground ? shadowSize * 2 : 0;
+
+        int layerTop = Math.max(0, top - schematicY - pad);
+        int layerBottom = Math.min(schemHeight, top + rows - schematicY + pad);
+        BufferedImage layer = layerBottom > layerTop ? drawLayer(size, layerTop, layerBottom - layerTop) : null;
+        var band = composite(layer, layerTop, top, rows);
+        RasterPool.shared.release(layer);
+        return band;
+    }
+
+    /**
+     * Puts the background, shadow, border and pixel art around some drawn blocks
+     * @param layer blocks from {@link #drawLayer(int, int, int)}, null if there are none in the band
+     * @param layerTop row of the schematic the layer starts at
+     * @param top first row of the preview to render
+     * @param rows amount of rows to render
+     * @return rows of the preview
+     */
+    BufferedImage composite(BufferedImage layer, int layerTop, int top, int rows){
+        return composite(layer, null, layerTop, top, rows);
+    }
+
+    /**
+     * @param shadow shadow of the layer, null to make one just for this
+     * @see #composite(BufferedImage, int, int, int)
+     */
+    private BufferedImage composite(BufferedImage layer, BufferedImage shadow, int layerTop, int top, int rows){
+        var band = RasterPool.shared.image(previewWidth, rows);
+        var g = band.createGraphics();
+        g.translate(0, -top);
+
+        if(drawBackground){
             // draw background, schematic and shadow on base image
-            currentGraphics.drawImage(background, 0, 0, null);
-            currentGraphics.drawImage(shadow, schematicOffsetX - 24, schematicOffsetY - 24, null);
-            currentGraphics.drawImage(schematicImage, schematicOffsetX, schematicOffsetY, null);
+            metrics.begin(Metrics.Stage.background);
+            drawBackground(g, top, rows);
+            metrics.end(Metrics.Stage.background);
+
+            if(layer != null){
+                deadline.check();
+                metrics.begin(Metrics.Stage.shadow);
+                var drawn = shadow != null ? shadow : createShadow(layer);
+                g.drawImage(drawn, schematicX - shadowSize, schematicY + layerTop - shadowSize, null);
+                if(drawn != shadow) RasterPool.shared.release(drawn);
+                metrics.end(Metrics.Stage.shadow);
+                g.drawImage(layer, schematicX, schematicY + layerTop, null);
+            }
 
             // draw borders on base image
-            currentGraphics.setColor(borderColor);
-            currentGraphics.setStroke(new BasicStroke(4f));
-            currentGraphics.drawRect(2, 2, width - 4, height - 4);
+            g.setColor(borderColor);
+            g.setStroke(new BasicStroke(4f));
+            g.drawRect(2, 2, previewWidth - 4, previewHeight - 4);
 
             // draw pixel art on base image
             if(makePixelArt && hasPixelArt){
-                currentGraphics.drawImage(art, currentImage.getWidth() - art.getWidth() - 4, 4, null);
-
-                currentGraphics.setColor(borderColor);
-                currentGraphics.setStroke(new BasicStroke(2f));
-                currentGraphics.drawRect(currentImage.getWidth() - art.getWidth() - 4 - 1, 3, art.getWidth() + 2, art.getHeight() + 2);
+                deadline.check();
+                metrics.begin(Metrics.Stage.pixelArt);
+                drawPixelArt(g, top, rows, artX, artY, pixelSize, pixelArtBorderPixels, false);
+
+                g.setColor(borderColor);
+                g.setStroke(new BasicStroke(2f));
+                g.drawRect(artX - 1, artY - 1, (schematic.width + pixelArtBorderPixels) * pixelSize + 2, (schematic.height + pixelArtBorderPixels) * pixelSize + 2);
+                metrics.end(Metrics.Stage.pixelArt);
             }
-
-            // replace schematic image with one with the background
-            this.image = withBackground;
         }else{
-            // draw pixel art on the schematic image (no background here)
+            if(layer != null){
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(layer, 0, layerTop, null);
+                g.setComposite(AlphaComposite.SrcOver);
+            }
+
             if(makePixelArt && hasPixelArt){
-                var art = getPixelArt(requests, pixelSize, pixelArtBorderPixels, true);
-                var full = new BufferedImage(currentImage.getWidth() + art.getWidth(), currentImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                metrics.begin(Metrics.Stage.pixelArt);
+                drawPixelArt(g, top, rows, artX, artY, pixelSize, pixelArtBorderPixels, true);
+                metrics.end(Metrics.Stage.pixelArt);
+            }
+        }
+
+        g.dispose();
+        return band;
+    }
+
+    /** @return every block of the schematic as a plan to draw, along with the grid and draw lists of every pass */
+    Seq<BuildPlan> plans(){
+        if(requests == null){
+            metrics.begin(Metrics.Stage.plans);
+            var plans = schematic.tiles.map(t -> {
+                var req = new BuildPlan(t.x, t.y, t.rotation, t.block, t.config);
+                req.animScale = 1f;
+                req.worldContext = false;
+                return req;
+            });
+
+            grid = new PlanGrid(plans, schematic.width, schematic.height);
+            bridgePlans = new IntSeq();
+            configPlans = new IntSeq();
+            linked = new boolean[plans.size];
+            for(int i = 0; i < plans.size; i++){
+                var req = plans.get(i);
+                if(req.block instanceof ItemBridge || req.block instanceof DirectionBridge){
+                    bridgePlans.add(i);
+                }else{
+                    configPlans.add(i);
+                    linked[i] = req.block instanceof PowerNode || req.config instanceof Point2 || req.config instanceof Point2[];
+                }
+            }
 
-                currentGraphics = full.createGraphics();
+            requests = plans;
+            metrics.end(Metrics.Stage.plans);
+        }
+        return requests;
+    }
 
-                currentGraphics.drawImage(schematicImage, 0, 0, null);
-                currentGraphics.drawImage(art, schematicImage.getWidth(), 0, null);
+    /**
+     * Draws the blocks that are in some rows of the schematic
+     * @param size render size
+     * @param top first row to draw
+     * @param rows amount of rows to draw
+     * @return the blocks without anything around them
+     */
+    BufferedImage drawLayer(int size, int top, int rows){
+        return drawLayer(size, 0, top, schematic.width * size * tilesize, rows);
+    }
 
-                currentImage = full;
-                image = full;
+    /**
+     * Draws the blocks that are in a rectangle of the schematic
+     * @param size render size
+     * @param left first column to draw
+     * @param top first row to draw
+     * @param columns amount of columns to draw
+     * @param rows amount of rows to draw
+     * @return the blocks without anything around them
+     */
+    BufferedImage drawLayer(int size, int left, int top, int columns, int rows){
+        var layer = RasterPool.shared.image(columns, rows);
+
+        plans();
+        var ctx = new RenderContext(layer, size, left, top, schematic.height * size * tilesize).begin();
+        ctx.metrics = metrics;
+        ctx.deadline = deadline;
+        try{
+            synchronized(drawLock){
+                deadline.check();
+                metrics.begin(Metrics.Stage.regions);
+                drawRegions(ctx);
+                metrics.end(Metrics.Stage.regions);
+
+                deadline.check();
+                metrics.begin(Metrics.Stage.bridgeConfigs);
+                drawBridgeConfigs();
+                metrics.end(Metrics.Stage.bridgeConfigs);
+
+                deadline.check();
+                metrics.begin(Metrics.Stage.configs);
+                drawConfigs(ctx);
+                metrics.end(Metrics.Stage.configs);
             }
+        }finally{
+            ctx.end();
         }
-        currentGraphics.dispose();
+
+        return layer;
     }
 
     /**
-     * @return memory required for rendering schematic preview
+     * Draws all the blocks, the context has to be {@link RenderContext#begin() bound}
+     * @param ctx what is being drawn
      */
-    private long getMemUsed(){
-        if(drawBackground){
-            var schemMem = (schematic.width * tilesize * tempSize) * (schematic.height * tilesize * tempSize) * 4;
-            var backgroundMem = 0;
-            var shadowMem = schemMem * 2;
+    void drawRegions(RenderContext ctx){
+        var requests = plans();
+        Draw.reset();
+        for(int i = 0; i < requests.size; i++){
+            var req = requests.get(i);
+            if(!visible(req, ctx, cullMargin)) continue;
+            req.block.drawPlanRegion(req, grid.near(i));
+            Draw.reset();
+        }
+    }
 
-            if(makePixelArt && hasPixelArt){
-                var artWidth = (schematic.width + pixelArtBorderPixels) * pixelSize;
-                var artHeight = (schematic.height + pixelArtBorderPixels) * pixelSize;
-                backgroundMem = (((schematic.width + backgroundOffset) * tilesize * tempSize) + artWidth) * (((schematic.height + backgroundOffset) * tilesize * tempSize) + artHeight) * 4;
+    /** draws bridge conveyors separately first to avoid some being over power node connections and some below */
+    void drawBridgeConfigs(){
+        var requests = plans();
+        for(int j = 0; j < bridgePlans.size; j++){
+            int i = bridgePlans.get(j);
+            var req = requests.get(i);
+            Draw.alpha(bridgeOpacity);
+            req.block.drawPlanConfigTop(req, grid.near(i));
+            Draw.reset();
+        }
+    }
 
-            }else{
-                backgroundMem = ((schematic.width + backgroundOffset) * tilesize * tempSize) * ((schematic.height + backgroundOffset) * tilesize * tempSize) * 4;
+    /**
+     * Draws the rest of the config
+     * @param ctx what is being drawn
+     */
+    void drawConfigs(RenderContext ctx){
+        var requests = plans();
+        for(int j = 0; j < configPlans.size; j++){
+            int i = configPlans.get(j);
+            var req = requests.get(i);
+            // links can go anywhere, so those are always drawn
+            if(!linked[i] && !visible(req, ctx, cullMargin)) continue;
+            req.block.drawPlanConfigTop(req, grid.near(i));
+            Draw.reset();
+        }
+    }
+
+    /**
+     * @param req block to check
+     * @param ctx what is being drawn
+     * @param margin extra tiles around the block its sprites might reach
+     * @return whether any part of the block can end up in the part of the schematic being drawn
+     */
+    private static boolean visible(BuildPlan req, RenderContext ctx, int margin){
+        int tile = tilesize * ctx.size;
+        int low = -(req.block.size - 1) / 2 - margin;
+        int high = req.block.size / 2 + margin;
+
+        // rows go top to bottom, tiles bottom to top
+        int firstRow = ctx.fullHeight - (req.y + high + 1) * tile;
+        int lastRow = ctx.fullHeight - (req.y + low) * tile;
+        int firstColumn = (req.x + low) * tile;
+        int lastColumn = (req.x + high + 1) * tile;
+        return lastRow > ctx.top && firstRow < ctx.top + ctx.image.getHeight() &&
+            lastColumn > ctx.left && firstColumn < ctx.left + ctx.image.getWidth();
+    }
+
+    /**
+     * @param layer blocks to make a shadow for
+     * @return shadow, {@link #shadowSize} bigger than the layer on every side
+     */
+    private static BufferedImage createShadow(BufferedImage layer){
+        return Shadow.create(layer, shadowSize, shadowOpacity, shadowScale);
+    }
+
+    /**
+     * Repeats the background tile over some rows of the preview
+     * @param g graphics translated to preview coordinates
+     * @param top first row
+     * @param rows amount of rows
+     */
+    private void drawBackground(Graphics2D g, int top, int rows){
+        g.setPaint(background());
+        g.fillRect(0, top, previewWidth, rows);
+    }
+
+    /** @return background tile, repeated from the top left corner of the preview */
+    private static TexturePaint background(){
+        if(background == null){
+            synchronized(Schematic.class){
+                if(background == null){
+                    try{
+                        var tile = ImageIO.read(Core.files.internal("schematic-background.png").read());
+                        background = new TexturePaint(tile, new Rectangle(0, 0, tile.getWidth(), tile.getHeight()));
+                    }catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }
             }
+        }
+        return background;
+    }
 
-            var total = schemMem + backgroundMem + shadowMem;
+    /**
+     * Writes the preview and smaller copies of it, all from the same render
+     * @param out stream to write the full preview to, null if only the copies are wanted
+     * @param outputs copies to write next to it
+     */
+    public void write(OutputStream out, Seq<Output> outputs) throws IOException{
+        for(var output : outputs) output.begin(previewWidth, previewHeight, quality());
 
-            if(makePixelArt && hasPixelArt){
-                total += (((schematic.width + pixelArtBorderPixels) * pixelSize) * ((schematic.height + pixelArtBorderPixels) * pixelSize)) * 3;
+        if(image != null){
+            deadline.check();
+            if(out != null) encode(out);
+
+            metrics.begin(Metrics.Stage.outputs);
+            for(var output : outputs) output.write(image);
+            metrics.end(Metrics.Stage.outputs);
+        }else{
+            PngWriter png = null;
+            if(out != null){
+                metrics.begin(Metrics.Stage.encode);
+                png = new PngWriter(out, previewWidth, previewHeight, pngLevel, pngThreads);
+                metrics.end(Metrics.Stage.encode);
             }
 
-            return total;
-        }else if(makePixelArt && hasPixelArt){
-            var schemWidth = schematic.width * tilesize * tempSize;
-            var schemHeight = schematic.height * tilesize * tempSize;
+            for(int top = 0; top < previewHeight; top += bandHeight){
+                deadline.check();
+                var band = renderBand(renderSize, top, Math.min(bandHeight, previewHeight - top));
+
+                if(png != null){
+                    metrics.begin(Metrics.Stage.encode);
+                    png.write(band);
+                    metrics.end(Metrics.Stage.encode);
+                }
+
+                metrics.begin(Metrics.Stage.outputs);
+                for(var output : outputs) output.write(band);
+                metrics.end(Metrics.Stage.outputs);
 
-            var artWidth = (schematic.width + pixelArtBorderPixels) * pixelSize;
-            var artHeight = (schematic.height + pixelArtBorderPixels) * pixelSize;
+                RasterPool.shared.release(band);
+            }
+
+            if(png != null){
+                metrics.begin(Metrics.Stage.encode);
+                png.finish();
+                metrics.end(Metrics.Stage.encode);
+                encodeTime = png.nanos / 1000000;
+            }
+        }
 
-            var schemMem = schemWidth * schemHeight * 4;
-            var artMem = artWidth * artHeight * 4;
+        metrics.begin(Metrics.Stage.outputs);
+        for(var output : outputs) output.finish();
+        metrics.end(Metrics.Stage.outputs);
+    }
 
-            var renderedMem = ((schemWidth + artWidth) * (schemHeight)) * 4;
+    /**
+     * Gives the preview's raster back to the {@link RasterPool} and its memory back to the {@link MemoryBudget}, once it's written and
+     * won't be used again
+     */
+    public void release(){
+        RasterPool.shared.release(image);
+        image = null;
+        pixelArt = null;
+        MemoryBudget.shared.free(reserved);
+        reserved = 0;
+    }
 
-            return schemMem + artMem + renderedMem;
+    /** encodes {@link #image} */
+    private void encode(OutputStream out) throws IOException{
+        metrics.begin(Metrics.Stage.encode);
+        if(imageioEncoder){
+            long start = System.nanoTime();
+            ImageIO.write(image, "png", out);
+            encodeTime = (System.nanoTime() - start) / 1000000;
         }else{
-            return ((long)schematic.width * tilesize * tempSize) * ((long)schematic.height * tilesize * tempSize) * 4;
+            encodeTime = PngWriter.encode(image, out, pngLevel, pngThreads) / 1000000;
         }
+        metrics.end(Metrics.Stage.encode);
     }
 
-    public JsonObject toJson() {
-        var obj = new JsonObject();
+    /**
+     * @param path path to a .msch file or base64 of a schematic
+     * @return the raw schematic file
+     */
+    static public byte[] readBytes(String path) throws IOException{
+        if(Fi.get(path).exists()){
+            return Fi.get(path).readBytes();
+        }else if(path.startsWith(header)){
+            try{
+                return Base64Coder.decode(path.trim());
+            }catch(IllegalArgumentException e){
+                throw new IOException("Either the schematic is inaccessible or provided base64 is invalid");
+            }
+        }else{
+            throw new IOException("That schematic is no where to be found");
+        }
+    }
+
+    /**
+     * @return everything besides the schematic itself that changes how a preview looks, previews rendered with different settings or
+     * a different build (and so different mindustry sprites) never share a cache entry
+     */
+    static public String renderOptions(){
+        return "quality=" + maxRenderSize + ";background=" + drawBackground + ";pixelArt=" + makePixelArt + ";pixelSize=4;pixelArtBorder=4" +
+            ";png=" + (imageioEncoder ? "imageio" : pngLevel) + ";shadowScale=" + shadowScale +
+            ";version=" + Schematic.class.getPackage().getImplementationVersion() + ";build=" + build;
+    }
 
-        var req = new JsonObject();
-        schematic.requirements().forEach(item -> req.addProperty(item.item.name, item.amount));
+    /** @return size and modification time of the jar (or class directory) the previewer runs from */
+    static private String build(){
+        try{
+            // the url is encoded, paths with spaces or other special characters only come out right through a uri
+            var jar = Paths.get(Schematic.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return java.nio.file.Files.size(jar) + "-" + java.nio.file.Files.getLastModifiedTime(jar).toMillis();
+        }catch(Exception e){
+            return "unknown";
+        }
+    }
 
-        var labels = new JsonArray();
-        schematic.labels.forEach(labels::add);
+    /**
+     * Memory a render needs at its peak, counting every image and buffer the pipeline allocates for it
+     * @param size render size, {@link #layout(int)} must have been called with it
+     * @param rows band height, 0 to render the whole preview at once
+     * @return bytes
+     */
+    long memUsed(int size, int rows){
+        boolean whole = rows == 0 || rows >= previewHeight;
+        if(whole) rows = previewHeight;
 
-        obj.addProperty("name", schematic.name());
-        obj.addProperty("description", schematic.description());
-        obj.addProperty("blockCount", schematic.tiles.size);
-        obj.addProperty("powerProduced", schematic.powerProduction() * 60f);
-        obj.addProperty("powerConsumed", schematic.powerConsumption() * 60f);
-        obj.addProperty("powerStored", batteryStorage);
-        obj.addProperty("width", schematic.width);
-        obj.addProperty("height", schematic.height);
-        obj.addProperty("hasArt", hasPixelArt);
-        obj.addProperty("quality", renderSize);
+        long layerWidth = (long)schematic.width * tilesize * size;
+        long schemHeight = (long)schematic.height * tilesize * size;
+        // bands also draw the blocks above and below them whose shadow reaches into them
+        long layerRows = whole ? schemHeight : Math.min(schemHeight, rows + (drawBackground ? shadowSize * 4L : 0));
+        long layer = layerWidth * layerRows * 4;
 
-        obj.add("requirements", req);
-        obj.add("labels", labels);
+        long shadow = 0;
+        if(drawBackground){
+            long shadowWidth = layerWidth + shadowSize * 2L, shadowHeight = layerRows + shadowSize * 2L;
+            long maskCells = ((shadowWidth + shadowScale - 1) / shadowScale) * ((shadowHeight + shadowScale - 1) / shadowScale);
+            // the shadow, its float mask and where every pixel samples the mask
+            shadow = shadowWidth * shadowHeight * 4 + maskCells * 4 + (shadowWidth + shadowHeight) * 8;
+        }
+        long art = makePixelArt && hasPixelArt ? Minimap.memUsed(schematic, pixelSize, pixelArtBorderPixels) : 0;
+        long png = PngWriter.memUsed(previewWidth, pngThreads);
+        // copies are shrunk alongside the preview, so they're all there from the first band until the end
+        long copies = outputsMemUsed(previewWidth, previewHeight);
+
+        // nothing goes around the blocks, the layer is the preview
+        if(whole && !drawBackground && art == 0) return layer + png + copies;
+        // kept layers and the pixel art stay around while the preview is written
+        if(whole && keepLayers && drawBackground) return (long)previewWidth * rows * 4 + layer + shadow + art + png + copies;
+
+        // the pixel art is reused by every band, the layer and shadow are released once the band is composited
+        long band = (long)previewWidth * rows * 4;
+        return band + art + copies + Math.max(layer + shadow, png);
+    }
 
-        return obj;
+    /** @return bytes every output needs for a preview of that size */
+    private long outputsMemUsed(int width, int height){
+        long used = 0;
+        for(var output : outputs) used += output.memUsed(width, height);
+        return used;
+    }
+
+    public JsonObject toJson() {
+        if(minimapPixels > 0){
+            var obj = metadata.toJson(quality());
+            obj.addProperty("mode", "minimap");
+            return obj;
+        }
+        return metadata.toJson(renderSize);
     }
 
     /**
@@ -317,6 +986,7 @@ public class Schematic{
      */
     static public void init(){
         if (inited) return;
+        long start = System.nanoTime();
 
         Version.enabled = false;
         Vars.content = new ContentLoader();
@@ -339,18 +1009,18 @@ public class Schematic{
         Core.atlas = new TextureAtlas();
 
         try {
-            var src = Schematic.class.getProtectionDomain().getCodeSource();
-            if (src != null) {
-                var zip = new ZipInputStream(src.getLocation().openStream());
-                ZipEntry ze;
-
-                while ((ze = zip.getNextEntry()) != null) {
-                    String entryName = ze.getName();
-                    if(entryName.startsWith("sprites") && entryName.endsWith(".png") ) {
-                        imageFiles.put(entryName.substring(entryName.lastIndexOf('/') + 1, entryName.length() - 4), entryName);
+            var packed = spritesPath == null ? SpriteStore.defaultPath() : Paths.get(spritesPath);
+            if (java.nio.file.Files.exists(packed)) {
+                sprites = SpriteStore.open(packed);
+            } else {
+                // running from class directories or without the packed file, every sprite gets decoded on first use
+                System.err.println("No packed sprites at " + packed + ", reading them from the jar");
+                var src = Schematic.class.getProtectionDomain().getCodeSource();
+                if (src != null) {
+                    try (var jar = src.getLocation().openStream()) {
+                        imageFiles = SpriteStore.scan(jar);
                     }
                 }
-
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -373,6 +1043,10 @@ public class Schematic{
         Core.batch = new SpriteBatch(0){
             @Override
             protected void draw(TextureRegion region, float x, float y, float originX, float originY, float width, float height, float rotation){
+                var ctx = RenderContext.get();
+                ctx.deadline.check();
+                int tempSize = ctx.size;
+
                 x += 4;
                 y += 4;
 
@@ -381,19 +1055,59 @@ public class Schematic{
                 width *= tempSize;
                 height *= tempSize;
 
-                y = currentImage.getHeight() - (y + height / 2f) - (height / 2f);
+                x -= ctx.left;
+                y = (ctx.fullHeight - ctx.top) - (y + height / 2f) - (height / 2f);
 
                 AffineTransform at = new AffineTransform();
                 at.translate(x, y);
                 at.rotate(-rotation * Mathf.degRad, originX * tempSize, originY * tempSize);
 
-                currentGraphics.setTransform(at);
-                BufferedImage image = getImage(((AtlasRegion)region).name);
+                String name = ((AtlasRegion)region).name;
+                if(ctx.metrics.on){
+                    ctx.metrics.count(Metrics.Counter.spriteDraws);
+                    ctx.metrics.count(regions.containsKey(name) ? Metrics.Counter.regionHits : Metrics.Counter.regionMisses);
+                }
+
+                BufferedImage image = getImage(name);
+                int tint = color.argb8888();
                 if(!color.equals(Color.white)){
-                    image = tint(image, color);
+                    BufferedImage source = image;
+                    ctx.metrics.count(Metrics.Counter.tints);
+                    image = tinted.get(new SpriteKey(name, tint), () -> {
+                        ctx.metrics.count(Metrics.Counter.tintMisses);
+                        return tint(source, color);
+                    });
+                }
+
+                int w = (int)width, h = (int)height;
+                if(w <= 0 || h <= 0) return;
+
+                // quarter turns with a clean scale always sample the same source pixels, so once the sprite has been
+                // scaled and turned it can be reused as long as it lands on whole pixels
+                if(rotation % 90f == 0f && Math.abs(rotation) < 360f && cleanScale(image.getWidth(), w) && cleanScale(image.getHeight(), h)){
+                    double[] corners = {0, 0, w, 0, 0, h, w, h};
+                    at.transform(corners, 0, corners, 0, 4);
+                    double minX = Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6]));
+                    double minY = Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7]));
+
+                    if(isWhole(minX) && isWhole(minY)){
+                        int dx = (int)Math.rint(minX), dy = (int)Math.rint(minY);
+                        int quarter = Math.round(-rotation / 90f) & 3;
+                        BufferedImage sprite = image;
+                        BufferedImage turned = prepared.get(new SpriteKey(name, tint, w, h, quarter), () -> prepare(sprite, at, dx, dy, w, h, quarter));
+
+                        if(ctx.blittable){
+                            Blitter.blit(turned, ctx.image, dx, dy);
+                        }else{
+                            ctx.graphics.setTransform(identity);
+                            ctx.graphics.drawImage(turned, dx, dy, null);
+                        }
+                        return;
+                    }
                 }
 
-                currentGraphics.drawImage(image, 0, 0, (int)width, (int)height, null);
+                ctx.graphics.setTransform(at);
+                ctx.graphics.drawImage(image, 0, 0, w, h, null);
             }
 
             @Override
@@ -419,70 +1133,100 @@ public class Schematic{
         };
 
         inited = true;
+        timeToLoad = (System.nanoTime() - start) / 1000000;
     }
 
+    /**
+     * Multiplies every pixel by a color, same result as {@link Color#mul(Color)} on each of them
+     * @param image sprite from {@link #getImage(String)}
+     * @param color color to multiply by
+     * @return tinted copy of the sprite
+     */
     static private BufferedImage tint(BufferedImage image, Color color){
-        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-        Color tmp = new Color();
-        for(int x = 0; x < copy.getWidth(); x++){
-            for(int y = 0; y < copy.getHeight(); y++){
-                int argb = image.getRGB(x, y);
-                tmp.argb8888(argb);
-                tmp.mul(color);
-                copy.setRGB(x, y, tmp.argb8888());
-            }
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        int[] src = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        int[] dst = ((DataBufferInt)copy.getRaster().getDataBuffer()).getData();
+
+        // every channel only depends on itself, so the float math only has to be done 256 times per channel
+        int[] a = tintTable(color.a), r = tintTable(color.r), g = tintTable(color.g), b = tintTable(color.b);
+        for(int i = 0; i < dst.length; i++){
+            int argb = src[i];
+            dst[i] = (a[argb >>> 24] << 24) | (r[(argb >>> 16) & 0xff] << 16) | (g[(argb >>> 8) & 0xff] << 8) | b[argb & 0xff];
         }
         return copy;
     }
 
     /**
-     * repeats a small image over and over until it reaches the desired dimensions (mainly used for drawing the background, could be optimized)
-     * @param image image to repeat
-     * @param newWidth width of the repeated image
-     * @param newHeight height of the repeated image
-     * @return repeated image
+     * Renders a sprite the same way the batch would, but relative to where it lands
+     * @param image tinted sprite
+     * @param at transform of the draw
+     * @param x left edge of the draw after transforming
+     * @param y top edge of the draw after transforming
+     * @param width width the sprite is scaled to
+     * @param height height the sprite is scaled to
+     * @param quarter amount of quarter turns
+     * @return scaled and turned sprite
      */
-    private BufferedImage repeatToSize(BufferedImage image, int newWidth, int newHeight){
-        BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = resized.createGraphics();
+    static private BufferedImage prepare(BufferedImage image, AffineTransform at, int x, int y, int width, int height, int quarter){
+        boolean sideways = (quarter & 1) == 1;
+        var turned = new BufferedImage(sideways ? height : width, sideways ? width : height, BufferedImage.TYPE_INT_ARGB);
+        var local = AffineTransform.getTranslateInstance(-x, -y);
+        local.concatenate(at);
+
+        var g = turned.createGraphics();
+        g.setTransform(local);
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return turned;
+    }
 
-        for(int x = 0; x <= newWidth; x += image.getWidth()){
-            for(int y = 0; y <= newHeight; y += image.getHeight()){
-                g.drawImage(image, x, y, null);
-            }
+    /** @return whether scaling between the sizes picks source pixels without any rounding ambiguity */
+    static private boolean cleanScale(int from, int to){
+        return from % to == 0 || to % from == 0;
+    }
+
+    static private boolean isWhole(double value){
+        return Math.abs(value - Math.rint(value)) < 1e-4;
+    }
+
+    static private int[] tintTable(float mul){
+        int[] table = new int[256];
+        for(int i = 0; i < table.length; i++){
+            table[i] = (int)(Mathf.clamp(i / 255f * mul) * 255);
         }
+        return table;
+    }
 
-        g.dispose();
-        return resized;
+    /** @return hits and misses of the tinted and prepared sprite caches since startup */
+    static public JsonObject spriteCacheStats(){
+        var obj = new JsonObject();
+        obj.add("tinted", tinted.stats());
+        obj.add("prepared", prepared.stats());
+        return obj;
     }
 
-    private BufferedImage getPixelArt(Seq<BuildPlan> plans, int pixelSize, int bgSize) {
-        return getPixelArt(plans, pixelSize, bgSize, false);
+    /** @return pixel art of the whole schematic, with a background */
+    BufferedImage getPixelArt() {
+        return Minimap.render(schematic, pixelSize, pixelArtBorderPixels, true);
     }
 
     /**
-     * @param plans schematic blocks
+     * Draws the pixel art onto a band of the preview, it's only rendered for the first band it's in
+     * @param top first row of the band
+     * @param rows amount of rows in the band
+     * @param x left edge of the pixel art
+     * @param y top edge of the pixel art
      * @param pixelSize size of each pixel
      * @param bgSize padding around the pixel art
-     * @param noBg render with a background (it is a solid color)
-     * @return render pixel art
+     * @param noBg leave the padding transparent instead of a solid color
      */
-    private BufferedImage getPixelArt(Seq<BuildPlan> plans, int pixelSize, int bgSize, boolean noBg) {
-        BufferedImage pixelArt = new BufferedImage((schematic.width + bgSize) * pixelSize, (schematic.height + bgSize) * pixelSize, noBg ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
-        var g = pixelArt.createGraphics();
-
-        if (!noBg) {
-            g.setColor(awtColor(Pal.darkerMetal));
-            g.fillRect(0, 0, pixelArt.getWidth(), pixelArt.getHeight());
-        }
-
-        plans.forEach(plan -> {
-            g.setColor(awtColor(((Item)plan.config).color));
-            g.fillRect((plan.x + (bgSize / 2)) * pixelSize, pixelArt.getHeight() - pixelSize - ((plan.y + (bgSize / 2)) * pixelSize), pixelSize, pixelSize);
-        });
+    private void drawPixelArt(Graphics2D g, int top, int rows, int x, int y, int pixelSize, int bgSize, boolean noBg) {
+        int height = (schematic.height + bgSize) * pixelSize;
+        if(y >= top + rows || y + height <= top) return;
 
-        g.dispose();
-        return pixelArt;
+        if(pixelArt == null) pixelArt = Minimap.render(schematic, pixelSize, bgSize, !noBg);
+        g.drawImage(pixelArt, x, y, null);
     }
 
     /**
@@ -493,14 +1237,29 @@ public class Schematic{
         return new java.awt.Color(col.r, col.g, col.b, col.a);
     }
 
+    /**
+     * Looks up a sprite outside of drawing, when blocks aren't being drawn at the same time
+     * @param name name of the sprite
+     * @return the sprite, null if there is no sprite with that name
+     */
+    static BufferedImage findImage(String name){
+        if(sprites != null ? !sprites.has(name) : !imageFiles.containsKey(name)) return null;
+        synchronized(drawLock){
+            return getImage(name);
+        }
+    }
+
     /**
      * @param name name of the block
-     * @return image for that block
+     * @return image for that block, always {@link BufferedImage#TYPE_INT_ARGB}
      */
     static private BufferedImage getImage(String name){
         return regions.get(name, () -> {
+            if(sprites != null) return sprites.read(sprites.has(name) ? name : "error");
+
             try{
-                return ImageIO.read(Schematic.class.getClassLoader().getResource(imageFiles.get(name, "error")));
+                // pngs decode into all kinds of layouts, tinting and blitting want a plain int raster
+                return SpriteStore.toArgb(ImageIO.read(Schematic.class.getClassLoader().getResource(imageFiles.get(name, "error"))));
             }catch(Exception e){
                 throw new RuntimeException(e);
             }
@@ -1,63 +1,526 @@
 package schematichandler;
 
 import arc.files.*;
+import arc.func.*;
+import arc.struct.*;
 import com.google.gson.*;
+import com.google.gson.stream.*;
 
-import javax.imageio.*;
 import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class SchematicHandler {
     public static Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    /** amount of schematics rendered at the same time in a batch */
+    public static int threads = Runtime.getRuntime().availableProcessors();
+    /** previews that were already rendered, null if caching is disabled */
+    public static PreviewCache cache;
+    /** whether schematics that take longer than {@link Schematic#timeout} are previewed as a minimap instead */
+    public static boolean timeoutMinimap = false;
+    /** layers of recent renders that edited versions of those schematics are drawn from, null if disabled */
+    public static LayerCache layers;
+
     public static void main(String[] args) {
+        String optionsPath = null;
+        String cacheDir = null;
+        String indexPath = null;
+        String inputPath = null;
+        String previewDir = null;
+        long cacheSize = 1024;
+        boolean daemon = false;
+        boolean stream = false;
+        int port = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--daemon": daemon = true; break;
+                case "--stream": stream = true; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--cache": cacheDir = args[++i]; break;
+                case "--cache-size": cacheSize = Long.parseLong(args[++i]); break;
+                case "--png-level": Schematic.pngLevel = Math.max(0, Math.min(9, Integer.parseInt(args[++i]))); break;
+                case "--png-threads": Schematic.pngThreads = Math.max(1, Integer.parseInt(args[++i])); break;
+                case "--png-encoder":
+                    var encoder = args[++i];
+                    if (!encoder.equals("png") && !encoder.equals("imageio")) {
+                        System.err.println("Unknown png encoder " + encoder + ", use png or imageio");
+                        System.exit(1);
+                    }
+                    Schematic.imageioEncoder = encoder.equals("imageio");
+                    break;
+                case "--metrics": Metrics.enabled = true; break;
+                case "--index": indexPath = args[++i]; break;
+                case "--input": inputPath = args[++i]; break;
+                case "--preview-dir": previewDir = args[++i]; break;
+                case "--sprites": Schematic.spritesPath = args[++i]; break;
+                case "--pool-size": RasterPool.shared = new RasterPool(Long.parseLong(args[++i]) * 1024 * 1024); break;
+                case "--heap-fraction": MemoryBudget.shared = new MemoryBudget(Double.parseDouble(args[++i])); break;
+                case "--timeout": Schematic.timeout = Long.parseLong(args[++i]); break;
+                case "--timeout-minimap": timeoutMinimap = true; break;
+                case "--layer-cache":
+                    layers = new LayerCache(Long.parseLong(args[++i]) * 1024 * 1024);
+                    Schematic.keepLayers = true;
+                    break;
+                default: optionsPath = args[i];
+            }
+        }
+
         Schematic.init();
 
+        if (cacheDir != null) {
+            try {
+                cache = new PreviewCache(Paths.get(cacheDir), cacheSize * 1024 * 1024);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        if (indexPath != null) {
+            try {
+                int indexed = new Indexer(System.out, threads).index(Paths.get(indexPath));
+                System.err.println("Indexed " + indexed + " schematics");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+
+        if (inputPath != null) {
+            var results = Collections.synchronizedList(new ArrayList<JsonObject>());
+            try {
+                input(Paths.get(inputPath), previewDir == null ? null : Paths.get(previewDir), System.out, results);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            printStats(results);
+            return;
+        }
+
+        if (daemon) {
+            if (port != -1) {
+                serve(port);
+            } else {
+                daemon(new InputStreamReader(System.in, StandardCharsets.UTF_8), new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+            }
+            return;
+        }
+
+        if (stream) {
+            var results = Collections.synchronizedList(new ArrayList<JsonObject>());
+            stream(Fi.get(optionsPath).reader(), System.out, results);
+            printStats(results);
+            return;
+        }
+
+        var pool = Executors.newFixedThreadPool(threads);
         try {
-            var schematicOptions = gson.fromJson(Fi.get(args[0]).reader(), JsonArray.class);
+            var schematicOptions = gson.fromJson(Fi.get(optionsPath).reader(), JsonArray.class);
             var previewed = new JsonArray();
+            var results = new ArrayList<JsonObject>();
+            var pending = new ArrayList<Future<JsonObject>>();
+
+            schematicOptions.forEach(schematicOption -> pending.add(pool.submit(() -> {
+                try {
+                    return preview(schematicOption.getAsJsonObject());
+                } catch (Throwable e) {
+                    return crashed(schematicOption.getAsJsonObject(), e);
+                }
+            })));
+
+            // results keep the order of the options file
+            for (var result : pending) {
+                try {
+                    var previewData = result.get();
+                    results.add(previewData);
+                    previewed.add(previewData);
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            System.out.println(gson.toJson(previewed));
+            printStats(results);
+
+        } catch (JsonSyntaxException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // the workers aren't daemon threads, the process only exits once they are stopped
+            finish(pool);
+        }
+    }
+
+    /** prints stats of the preview cache to stderr after a batch, with <code>--metrics</code> also the other caches, the memory budget and the metrics of its results */
+    private static void printStats(List<JsonObject> results) {
+        if (cache != null) System.err.println("Preview cache: " + gson.toJson(cache.stats()));
+        if (Metrics.enabled) System.err.println("Raster pool: " + gson.toJson(RasterPool.shared.stats()));
+        if (Metrics.enabled) System.err.println("Sprite caches: " + gson.toJson(Schematic.spriteCacheStats()));
+        if (Metrics.enabled) System.err.println("Memory budget: " + gson.toJson(MemoryBudget.shared.stats()));
+        if (layers != null && Metrics.enabled) System.err.println("Layer cache: " + gson.toJson(layers.stats()));
+        if (Metrics.enabled) System.err.println("Metrics: " + gson.toJson(Metrics.summary(results)));
+    }
+
+    /**
+     * Renders a single schematic option
+     * @param schematicOption object with a <code>schematicPath</code>, an optional <code>previewPath</code>, optional extra <code>outputs</code>
+     * an optional <code>mode</code>, <code>full</code> or <code>minimap</code>, and an optional <code>previous</code> version of the schematic
+     * (path or base64) it was edited from
+     * @return schematic data, or an error object if it could not be previewed
+     */
+    public static JsonObject preview(JsonObject schematicOption) {
+        return preview(schematicOption, null);
+    }
 
-            schematicOptions.forEach(schematicOption -> {
-                var path = schematicOption.getAsJsonObject().get("schematicPath").getAsString();
-                var previewPath = schematicOption.getAsJsonObject().get("previewPath") == null ? null : schematicOption.getAsJsonObject().get("previewPath").getAsString();
+    /**
+     * Renders a single schematic option whose schematic was already read
+     * @param data schematic file contents, null to read it from <code>schematicPath</code>
+     * @see #preview(JsonObject)
+     */
+    public static JsonObject preview(JsonObject schematicOption, byte[] data) {
+        var path = schematicOption.get("schematicPath").getAsString();
+        var previewPath = schematicOption.get("previewPath") == null ? null : schematicOption.get("previewPath").getAsString();
 
+        try {
+            var outputs = new Seq<Output>();
+            if (schematicOption.has("outputs")) {
+                for (var output : schematicOption.getAsJsonArray("outputs")) outputs.add(Output.fromJson(output.getAsJsonObject()));
+            }
+
+            var mode = schematicOption.has("mode") ? schematicOption.get("mode").getAsString() : "full";
+            if (!mode.equals("full") && !mode.equals("minimap")) throw new IOException("Unknown mode " + mode + ", use full or minimap");
+            var minimap = mode.equals("minimap");
+
+            var bytes = data != null ? data : Schematic.readBytes(path);
+            var key = cache == null ? null : PreviewCache.key(bytes, Schematic.renderOptions() + (minimap ? ";mode=minimap" : ""));
+
+            // the cache only keeps full previews, extra outputs need a render
+            var previewData = cache == null || outputs.any() ? null : cache.get(key, previewPath == null ? null : Paths.get(previewPath));
+            if (previewData != null) {
+                previewData.addProperty("cached", true);
+            } else {
+                var rendered = new Schematic(bytes, previewPath != null || outputs.any(), minimap, previousLayers(schematicOption, minimap), outputs);
+
+                // the memory reserved for rendering is only given back once it's written, anything throwing before that would keep it
                 try {
-                    var rendered = new Schematic(path, previewPath != null);
-                    var previewData = rendered.toJson();
-                    previewData.addProperty("schematicPath", path);
+                    previewData = rendered.toJson();
 
                     if (previewPath != null) {
-                        ImageIO.write(rendered.image, "png", Fi.get(previewPath).write());
-                        previewData.addProperty("previewPath", previewPath);
+                        // the old preview might be hard linked to a cache entry, don't write through it
+                        Files.deleteIfExists(Paths.get(previewPath));
+                        try (var stream = Fi.get(previewPath).write()) {
+                            rendered.write(stream, outputs);
+                        }
+                    } else if (outputs.any()) {
+                        rendered.write(null, outputs);
+                    }
+                } finally {
+                    rendered.release();
+                }
+
+                // previews that were made smaller or turned into a minimap because there wasn't enough memory shouldn't stick around,
+                // the key is for the full quality one
+                boolean fullQuality = minimap
+                    ? rendered.minimapPixels == 0 || rendered.minimapPixels == Schematic.minimapSize
+                    : rendered.minimapPixels == 0 && rendered.renderSize == Schematic.maxRenderSize;
+                if (cache != null && fullQuality) {
+                    try {
+                        cache.put(key, previewData, previewPath == null ? null : Paths.get(previewPath));
+                    } catch (IOException e) {
+                        // the preview itself is fine, it just won't be cached
+                        System.err.println("Failed to cache " + path + ": " + e.getMessage());
                     }
+                }
 
-                    previewed.add(previewData);
+                if (layers != null && rendered.layers != null) layers.put(PreviewCache.key(bytes, Schematic.renderOptions()), rendered.layers);
 
-                } catch (IOException e) {
-                    var error = new JsonObject();
-                    error.addProperty("schematicPath", path);
-                    error.addProperty("error", e.getMessage());
+                // added after caching, these are only true for this render
+                if (previewPath != null) {
+                    previewData.addProperty("encodeTime", rendered.encodeTime);
+                    previewData.addProperty("previewSize", Files.size(Paths.get(previewPath)));
+                }
+                if (rendered.incremental) previewData.addProperty("incremental", true);
+                if (rendered.metrics.on) previewData.add("metrics", rendered.metrics.toJson());
+                if (outputs.any()) {
+                    var written = new JsonArray();
+                    outputs.each(output -> written.add(output.toJson()));
+                    previewData.add("outputs", written);
+                }
+            }
 
-                    if (e.getMessage().equals("Either the schematic is inaccessible or provided base64 is invalid") || e.getMessage().equals("That schematic is no where to be found") || e.getMessage().equals("Schematic has no blocks")) {
-                        error.addProperty("code", SchematicErrorCodes.InvalidSchematic.ordinal());
-                    } else if (e.getMessage().equals("Schematic is way to big to render even at a reduced size")) {
-                        error.addProperty("code", SchematicErrorCodes.TooBig.ordinal());
-                    } else {
-                        error.addProperty("code", SchematicErrorCodes.Other.ordinal());
+            previewData.addProperty("schematicPath", path);
+            if (previewPath != null) previewData.addProperty("previewPath", previewPath);
+
+            return previewData;
+
+        } catch (IOException e) {
+            return error(path, e);
+        } catch (CancellationException e) {
+            // the deadline passed, a minimap only takes a moment so it gets a try with a deadline of its own
+            boolean minimap = schematicOption.has("mode") && schematicOption.get("mode").getAsString().equals("minimap");
+            if (timeoutMinimap && !minimap) {
+                var fallback = schematicOption.deepCopy();
+                fallback.addProperty("mode", "minimap");
+                var previewData = preview(fallback, data);
+                previewData.addProperty("timedOut", true);
+                return previewData;
+            }
+
+            // don't leave half a preview behind
+            if (previewPath != null) {
+                try {
+                    Files.deleteIfExists(Paths.get(previewPath));
+                } catch (IOException ignored) {
+                }
+            }
+
+            var error = new JsonObject();
+            error.addProperty("schematicPath", path);
+            error.addProperty("error", Deadline.message);
+            error.addProperty("code", SchematicErrorCodes.Timeout.ordinal());
+            return error;
+        }
+    }
+
+    /**
+     * @param path <code>schematicPath</code> of the schematic
+     * @param e why it could not be previewed
+     * @return error object for it
+     */
+    private static JsonObject error(String path, IOException e) {
+        var error = new JsonObject();
+        error.addProperty("schematicPath", path);
+        error.addProperty("error", e.getMessage());
+
+        if (e.getMessage().equals("Either the schematic is inaccessible or provided base64 is invalid") || e.getMessage().equals("That schematic is no where to be found") || e.getMessage().equals("Schematic has no blocks")) {
+            error.addProperty("code", SchematicErrorCodes.InvalidSchematic.ordinal());
+        } else if (e.getMessage().equals("Schematic is way to big to render even at a reduced size")) {
+            error.addProperty("code", SchematicErrorCodes.TooBig.ordinal());
+        } else {
+            error.addProperty("code", SchematicErrorCodes.Other.ordinal());
+        }
+
+        return error;
+    }
+
+    /**
+     * @param schematicOption options of the schematic being rendered
+     * @param minimap whether it's rendered as a minimap, those don't have layers
+     * @return cached layers of the <code>previous</code> version of the schematic, null if there is none or it isn't cached
+     */
+    private static LayerCache.Layers previousLayers(JsonObject schematicOption, boolean minimap) {
+        if (layers == null || minimap || !schematicOption.has("previous")) return null;
+
+        try {
+            return layers.get(PreviewCache.key(Schematic.readBytes(schematicOption.get("previous").getAsString()), Schematic.renderOptions()));
+        } catch (IOException e) {
+            // it's only used to draw less, everything gets drawn without it
+            return null;
+        }
+    }
+
+    /**
+     * Like the default batch mode, but the options array is read incrementally and every result is printed as its own json line as soon
+     * as it is done. Lines come in the order schematics finish, <code>index</code> is the position of the option in the array
+     * @param in json array of schematic options
+     * @param out results, one json object per line
+     * @param results every result is also added to this
+     */
+    public static void stream(Reader in, PrintStream out, List<JsonObject> results) {
+        var pool = Executors.newFixedThreadPool(threads);
+        // don't read further ahead than the workers can keep up with
+        var inFlight = new Semaphore(threads * 2);
+
+        try (var reader = new JsonReader(in)) {
+            reader.beginArray();
+
+            for (int index = 0; reader.hasNext(); index++) {
+                JsonObject schematicOption = gson.fromJson(reader, JsonObject.class);
+                submit(pool, inFlight, index, schematicOption, () -> preview(schematicOption), out, results);
+            }
+
+            reader.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finish(pool);
+        }
+    }
+
+    /**
+     * Previews every schematic in a zip or a file of base64 schematics without extracting anything, results are printed like
+     * {@link #stream}. Their <code>schematicPath</code> is where in the input the schematic is
+     * @param input zip of .msch files, or text file with a base64 schematic on every line
+     * @param previewDir previews are written here, named after the zip entry or the line. Null to only read the schematics
+     * @param out results, one json object per line
+     * @param results every result is also added to this
+     */
+    public static void input(Path input, Path previewDir, PrintStream out, List<JsonObject> results) throws IOException {
+        if (previewDir != null) Files.createDirectories(previewDir);
+        var bulk = new BulkInput(input);
+        var pool = Executors.newFixedThreadPool(threads);
+        var inFlight = new Semaphore(threads * 2);
+
+        try {
+            for (int index = 0; index < bulk.entries.size; index++) {
+                var entry = bulk.entries.get(index);
+                var schematicOption = new JsonObject();
+                schematicOption.addProperty("schematicPath", entry.path);
+                if (previewDir != null) schematicOption.addProperty("previewPath", previewDir.resolve(entry.name + ".png").toString());
+
+                submit(pool, inFlight, index, schematicOption, () -> {
+                    try {
+                        // read on the worker, so only the schematics being previewed are in memory
+                        return preview(schematicOption, entry.read());
+                    } catch (IOException e) {
+                        return error(entry.path, e);
                     }
+                }, out, results);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // entries are read until the last one is done
+            finish(pool);
+            bulk.close();
+        }
+    }
 
-                    previewed.add(error);
+    /**
+     * Previews on the pool once fewer than the semaphore allows are in flight, the result is printed as soon as it's done
+     * @param index position of the schematic, added to its result
+     * @param schematicOption options of the schematic, for the error if it crashes
+     * @param task previews the schematic
+     */
+    private static void submit(ExecutorService pool, Semaphore inFlight, int index, JsonObject schematicOption, Prov<JsonObject> task, PrintStream out, List<JsonObject> results) throws InterruptedException {
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                JsonObject result;
+                try {
+                    result = task.get();
+                } catch (Throwable e) {
+                    // every input gets its line, even when it took the worker down with it
+                    result = crashed(schematicOption, e);
                 }
-            });
+                result.addProperty("index", index);
+                results.add(result);
 
-            System.out.println(gson.toJson(previewed));
+                synchronized (out) {
+                    out.println(gson.toJson(result));
+                    out.flush();
+                }
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
 
-        } catch (JsonSyntaxException e) {
-            throw new RuntimeException(e);
+    /** stops taking work and waits for everything submitted to be done */
+    private static void finish(ExecutorService pool) {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param schematicOption options of the schematic that was being previewed, null if they couldn't be read
+     * @param e unexpected exception thrown while previewing
+     * @return error object for it
+     */
+    private static JsonObject crashed(JsonObject schematicOption, Throwable e) {
+        e.printStackTrace();
+        var error = new JsonObject();
+        if (schematicOption != null && schematicOption.has("schematicPath")) error.add("schematicPath", schematicOption.get("schematicPath"));
+        error.addProperty("error", String.valueOf(e.getMessage()));
+        error.addProperty("code", SchematicErrorCodes.Other.ordinal());
+        return error;
+    }
+
+    /**
+     * Reads NDJSON schematic options line by line and writes one result line for each of them, content and sprites stay loaded between requests
+     * @param in requests, one json object per line
+     * @param out results, one json object per line
+     */
+    public static void daemon(Reader in, PrintWriter out) {
+        try {
+            var reader = new BufferedReader(in);
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+
+                JsonObject result;
+                JsonObject schematicOption = null;
+                try {
+                    schematicOption = gson.fromJson(line, JsonObject.class);
+
+                    if (schematicOption != null && schematicOption.has("stats")) {
+                        result = cache == null ? new JsonObject() : cache.stats();
+                        result.add("rasterPool", RasterPool.shared.stats());
+                        result.add("spriteCaches", Schematic.spriteCacheStats());
+                        result.add("memoryBudget", MemoryBudget.shared.stats());
+                        if (layers != null) result.add("layerCache", layers.stats());
+                    } else {
+                        if (schematicOption == null || schematicOption.get("schematicPath") == null) throw new JsonParseException("Missing schematicPath");
+                        result = preview(schematicOption);
+                    }
+                } catch (JsonParseException | IllegalStateException e) {
+                    result = new JsonObject();
+                    result.addProperty("error", "Invalid request: " + e.getMessage());
+                    result.addProperty("code", SchematicErrorCodes.Other.ordinal());
+                } catch (Throwable e) {
+                    // keep the daemon alive, a single broken schematic shouldn't take everything down, not even when it runs out of memory
+                    result = crashed(schematicOption, e);
+                }
+
+                out.println(gson.toJson(result));
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #daemon(Reader, PrintWriter)} but over a tcp socket bound to localhost, each connection is a separate NDJSON stream and connections render in parallel
+     * @param port port to listen on
+     */
+    public static void serve(int port) {
+        try (var server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+
+            while (true) {
+                var socket = server.accept();
+
+                var connection = new Thread(() -> {
+                    try (socket) {
+                        daemon(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+                    } catch (IOException | UncheckedIOException e) {
+                        System.err.println("Connection closed: " + e.getMessage());
+                    }
+                }, "previewer-connection");
+
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     public enum SchematicErrorCodes {
         InvalidSchematic,
         TooBig,
-        Other
+        Other,
+        Timeout
     }
 }
@@ -0,0 +1,150 @@
+package schematichandler;
+
+import java.awt.image.*;
+
+/**
+ * Black drop shadows, the same box blur of the image alpha as jide's ShadowFactory at high quality.
+ * The blur runs on a mask scaled down by a few times with two separable running sum passes, so it costs a few operations per pixel
+ * no matter how big the shadow is, and the result is scaled back up with bilinear filtering.
+ * The sums are whole numbers, so a pixel of the shadow only depends on the pixels around it and not on where the blur started,
+ * part of a shadow can be made again from part of the image, see {@link #update}.
+ */
+public class Shadow{
+    /**
+     * @param image image to make a shadow for
+     * @param size width of the blur, the shadow is this much bigger than the image on every side
+     * @param opacity opacity of the shadow under fully opaque pixels
+     * @param scale how many times smaller the blurred mask is, 1 blurs at full size
+     * @return the shadow, from the {@link RasterPool} so it can be released once it's drawn
+     */
+    public static BufferedImage create(BufferedImage image, int size, float opacity, int scale){
+        int width = image.getWidth() + size * 2, height = image.getHeight() + size * 2;
+        int maskWidth = (width + scale - 1) / scale, maskHeight = (height + scale - 1) / scale;
+
+        // alpha of every scale x scale block added up
+        var mask = new int[maskWidth * maskHeight];
+        var row = new int[image.getWidth()];
+        for(int y = 0; y < image.getHeight(); y++){
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            int offset = (y + size) / scale * maskWidth;
+            for(int x = 0; x < row.length; x++){
+                int alpha = row[x] >>> 24;
+                if(alpha != 0) mask[offset + (x + size) / scale] += alpha;
+            }
+        }
+
+        int cells = Math.max(1, Math.round((float)size / scale));
+        blur(mask, maskWidth, maskHeight, cells, 1, maskWidth);
+        blur(mask, maskHeight, maskWidth, cells, maskWidth, 1);
+        // from summed alpha to the opacity of the shadow
+        float unit = 1f / (255f * scale * scale * cells * cells);
+
+        // ConvolveOp's window goes from size / 2 before a pixel until the rest after it, so for even sizes its center is half a pixel off.
+        // find where that center is in the blurred mask for every pixel
+        float offset = (size - 1) / 2f - size / 2 - (scale - 1) / 2f;
+        float shift = cells / 2 - (cells - 1) / 2f;
+        var fromX = new int[width];
+        var weightX = new float[width];
+        sample(fromX, weightX, scale, offset, shift, maskWidth);
+        var fromY = new int[height];
+        var weightY = new float[height];
+        sample(fromY, weightY, scale, offset, shift, maskHeight);
+
+        var shadow = RasterPool.shared.image(width, height);
+        var out = ((DataBufferInt)shadow.getRaster().getDataBuffer()).getData();
+        float max = opacity * 255f * unit;
+
+        for(int y = 0; y < height; y++){
+            int top = fromY[y] * maskWidth, bottom = Math.min(fromY[y] + 1, maskHeight - 1) * maskWidth;
+            float ty = weightY[y];
+
+            for(int x = 0; x < width; x++){
+                int left = fromX[x], right = Math.min(left + 1, maskWidth - 1);
+                float tx = weightX[x];
+
+                float upper = mask[top + left] + (float)(mask[top + right] - mask[top + left]) * tx;
+                float lower = mask[bottom + left] + (float)(mask[bottom + right] - mask[bottom + left]) * tx;
+                int alpha = (int)((upper + (lower - upper) * ty) * max + 0.5f);
+
+                if(alpha > 0) out[y * width + x] = Math.min(alpha, 255) << 24;
+            }
+        }
+
+        return shadow;
+    }
+
+    /**
+     * Makes the part of a shadow that a changed rectangle of the image reaches again, it ends up the same as a whole new shadow
+     * @param image image the shadow was made for, already changed
+     * @param shadow shadow from {@link #create(BufferedImage, int, float, int)} with the same settings, changed in place
+     * @param left first changed column of the image
+     * @param top first changed row of the image
+     * @param right column after the last changed one
+     * @param bottom row after the last changed one
+     */
+    public static void update(BufferedImage image, BufferedImage shadow, int left, int top, int right, int bottom, int size, float opacity, int scale){
+        // how far a pixel of the image reaches into the shadow, and so how far a pixel of the shadow reaches back
+        int reach = size + scale * 3;
+
+        // part of the shadow to make again, in image coordinates
+        int x1 = Math.max(left - reach, -size), y1 = Math.max(top - reach, -size);
+        int x2 = Math.min(right + reach, image.getWidth() + size), y2 = Math.min(bottom + reach, image.getHeight() + size);
+
+        // part of the image it depends on, starting at a mask cell of the whole shadow so the blur lines up
+        int fromX = Math.max(0, Math.floorDiv(x1 - reach, scale) * scale), fromY = Math.max(0, Math.floorDiv(y1 - reach, scale) * scale);
+        int toX = Math.min(image.getWidth(), x2 + reach), toY = Math.min(image.getHeight(), y2 + reach);
+        if(x2 <= x1 || y2 <= y1 || toX <= fromX || toY <= fromY) return;
+
+        var part = create(image.getSubimage(fromX, fromY, toX - fromX, toY - fromY), size, opacity, scale);
+        var from = ((DataBufferInt)part.getRaster().getDataBuffer()).getData();
+        var to = ((DataBufferInt)shadow.getRaster().getDataBuffer()).getData();
+        int partWidth = part.getWidth(), width = shadow.getWidth();
+
+        for(int y = y1; y < y2; y++){
+            System.arraycopy(from, (y - fromY + size) * partWidth + x1 - fromX + size, to, (y + size) * width + x1 + size, x2 - x1);
+        }
+        RasterPool.shared.release(part);
+    }
+
+    /**
+     * Box blurs every line of the mask in place with a running sum, cells end up as the sum of the box around them
+     * @param lines amount of lines
+     * @param length cells in a line
+     * @param cells width of the box
+     * @param step distance between cells of a line
+     * @param stride distance between lines
+     */
+    private static void blur(int[] mask, int length, int lines, int cells, int step, int stride){
+        // from cells / 2 before the cell until the rest after it
+        int before = cells / 2, after = cells - 1 - before;
+        var line = new int[length];
+
+        for(int l = 0; l < lines; l++){
+            int start = l * stride;
+            for(int i = 0; i < length; i++) line[i] = mask[start + i * step];
+
+            int sum = 0;
+            for(int i = 0; i < Math.min(after, length); i++) sum += line[i];
+
+            for(int i = 0; i < length; i++){
+                if(i + after < length) sum += line[i + after];
+                if(i - before - 1 >= 0) sum -= line[i - before - 1];
+                mask[start + i * step] = sum;
+            }
+        }
+    }
+
+    /**
+     * Finds the two mask cells every pixel is between and how far it is to the second one.
+     * Offset and shift are whole halves, so positions are counted in halves of a pixel to keep the weights the same wherever the
+     * image starts
+     */
+    private static void sample(int[] from, float[] weight, int scale, float offset, float shift, int cells){
+        int halves = scale * 2, start = Math.round(offset * 2) + Math.round(shift * halves);
+        for(int i = 0; i < from.length; i++){
+            int position = Math.max(i * 2 + start, 0);
+            from[i] = Math.min(position / halves, cells - 1);
+            weight[i] = (position % halves) / (float)halves;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package schematichandler;
+
+/** Identifies a sprite after it has been tinted, and optionally scaled and turned */
+public final class SpriteKey{
+    public final String name;
+    /** tint color, packed as argb8888 */
+    public final int color;
+    /** size the sprite is scaled to, 0 if it is not scaled */
+    public final int width, height;
+    /** amount of quarter turns, 0 - 3 */
+    public final int quarter;
+
+    public SpriteKey(String name, int color){
+        this(name, color, 0, 0, 0);
+    }
+
+    public SpriteKey(String name, int color, int width, int height, int quarter){
+        this.name = name;
+        this.color = color;
+        this.width = width;
+        this.height = height;
+        this.quarter = quarter;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o) return true;
+        if(!(o instanceof SpriteKey)) return false;
+        var key = (SpriteKey)o;
+        return color == key.color && width == key.width && height == key.height && quarter == key.quarter && name.equals(key.name);
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = 31 * name.hashCode() + color;
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        return 31 * hash + quarter;
+    }
+}
@@ -0,0 +1,208 @@
+package schematichandler;
+
+import arc.struct.*;
+
+import javax.imageio.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * Every sprite in the jar, already decoded, in a single file that is memory mapped at startup.
+ * Made by running this class after the jar is built (<code>./gradlew dist</code> does it), so a new process doesn't have to scan the jar
+ * or decode any pngs. Reading a sprite is a copy of its pixels out of the mapped file.
+ * <p>
+ * The file is an index followed by the pixels:
+ * <pre>
+ * int magic, int version, int count, int start of the pixels
+ * count times: utf name, int width, int height, int offset (in pixels, from the start of the pixels)
+ * padding to 4 bytes
+ * pixels, little endian {@link BufferedImage#TYPE_INT_ARGB}
+ * </pre>
+ * Pixels aren't premultiplied, they are exactly what decoding the png gave so previews look the same either way.
+ */
+public class SpriteStore{
+    static final int magic = 0x4d535052; // MSPR
+    static final int version = 1;
+    /** name of the file next to the jar */
+    static public final String fileName = "previewer-sprites.bin";
+
+    private final ObjectMap<String, Sprite> sprites = new ObjectMap<>();
+    private final IntBuffer pixels;
+
+    private static class Sprite{
+        final int width, height, offset;
+
+        Sprite(int width, int height, int offset){
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+        }
+    }
+
+    private SpriteStore(Path file) throws IOException{
+        int start;
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            if(in.readInt() != magic) throw new IOException(file + " is not a sprite file");
+            if(in.readInt() != version) throw new IOException(file + " was packed by a different version, pack it again");
+
+            int count = in.readInt();
+            start = in.readInt();
+            for(int i = 0; i < count; i++){
+                sprites.put(in.readUTF(), new Sprite(in.readInt(), in.readInt(), in.readInt()));
+            }
+        }
+
+        try(var channel = FileChannel.open(file, StandardOpenOption.READ)){
+            // the mapping stays valid after the channel is closed
+            pixels = channel.map(FileChannel.MapMode.READ_ONLY, start, channel.size() - start).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+    }
+
+    /**
+     * @param file packed sprites
+     * @return the sprites, nothing is read until they are used besides the index
+     */
+    public static SpriteStore open(Path file) throws IOException{
+        return new SpriteStore(file);
+    }
+
+    /** @return where the sprites are packed to, next to the jar the previewer is running from */
+    public static Path defaultPath(){
+        try{
+            var jar = Paths.get(SpriteStore.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return jar.resolveSibling(fileName);
+        }catch(Exception e){
+            return Paths.get(fileName);
+        }
+    }
+
+    public boolean has(String name){
+        return sprites.containsKey(name);
+    }
+
+    /**
+     * @param name name of the sprite
+     * @return a new image with the sprite's pixels, always {@link BufferedImage#TYPE_INT_ARGB}
+     */
+    public BufferedImage read(String name){
+        var sprite = sprites.get(name);
+        if(sprite == null) throw new IllegalArgumentException("There is no sprite named " + name);
+
+        var image = new BufferedImage(sprite.width, sprite.height, BufferedImage.TYPE_INT_ARGB);
+        pixels.get(sprite.offset, Blitter.data(image), 0, sprite.width * sprite.height);
+        return image;
+    }
+
+    /**
+     * Finds the sprites in a jar, the same way it was done before they were packed
+     * @param jar contents of the jar
+     * @return name of every sprite mapped to its entry, later entries win
+     */
+    public static StringMap scan(InputStream jar) throws IOException{
+        var files = new StringMap();
+        var zip = new ZipInputStream(jar);
+        ZipEntry entry;
+
+        while((entry = zip.getNextEntry()) != null){
+            String entryName = entry.getName();
+            if(entryName.startsWith("sprites") && entryName.endsWith(".png")){
+                files.put(entryName.substring(entryName.lastIndexOf('/') + 1, entryName.length() - 4), entryName);
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * @param decoded any decoded png
+     * @return the same image as {@link BufferedImage#TYPE_INT_ARGB}, which tinting and blitting want
+     */
+    static BufferedImage toArgb(BufferedImage decoded){
+        if(decoded.getType() == BufferedImage.TYPE_INT_ARGB) return decoded;
+
+        var argb = new BufferedImage(decoded.getWidth(), decoded.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        var g = argb.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(decoded, 0, 0, null);
+        g.dispose();
+        return argb;
+    }
+
+    /**
+     * Decodes every sprite in a jar and packs them
+     * @param jar built previewer jar
+     * @param out file to write
+     * @return amount of sprites packed
+     */
+    public static int pack(Path jar, Path out) throws IOException{
+        StringMap files;
+        try(var in = new BufferedInputStream(Files.newInputStream(jar))){
+            files = scan(in);
+        }
+
+        var names = files.keys().toSeq().sort();
+        var images = new Seq<BufferedImage>();
+        long pixelCount = 0;
+
+        try(var zip = new ZipFile(jar.toFile())){
+            for(var name : names){
+                try(var in = zip.getInputStream(zip.getEntry(files.get(name)))){
+                    var decoded = ImageIO.read(in);
+                    if(decoded == null) throw new IOException("Sprite " + files.get(name) + " could not be decoded");
+                    images.add(toArgb(decoded));
+                    pixelCount += (long)decoded.getWidth() * decoded.getHeight();
+                }
+            }
+        }
+        if(pixelCount * 4 > Integer.MAX_VALUE) throw new IOException("Sprites are too big to be mapped at once");
+
+        var index = new ByteArrayOutputStream();
+        var indexStream = new DataOutputStream(index);
+        int offset = 0;
+        for(int i = 0; i < names.size; i++){
+            var image = images.get(i);
+            indexStream.writeUTF(names.get(i));
+            indexStream.writeInt(image.getWidth());
+            indexStream.writeInt(image.getHeight());
+            indexStream.writeInt(offset);
+            offset += image.getWidth() * image.getHeight();
+        }
+
+        Files.createDirectories(out.toAbsolutePath().getParent());
+        try(var stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(out)))){
+            stream.writeInt(magic);
+            stream.writeInt(version);
+            stream.writeInt(names.size);
+            stream.writeInt((16 + index.size() + 3) & ~3);
+            index.writeTo(stream);
+            while(stream.size() % 4 != 0) stream.writeByte(0);
+
+            var row = ByteBuffer.allocate(4096 * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for(var image : images){
+                for(int argb : Blitter.data(image)){
+                    if(!row.hasRemaining()){
+                        stream.write(row.array(), 0, row.position());
+                        row.clear();
+                    }
+                    row.putInt(argb);
+                }
+            }
+            stream.write(row.array(), 0, row.position());
+        }
+
+        return names.size;
+    }
+
+    /** packs the sprites of a built jar, <code>SpriteStore path/to/previewer.jar path/to/previewer-sprites.bin</code> */
+    public static void main(String[] args) throws IOException{
+        var jar = Paths.get(args[0]);
+        var out = args.length > 1 ? Paths.get(args[1]) : jar.resolveSibling(fileName);
+        int packed = pack(jar, out);
+        System.out.println("Packed " + packed + " sprites into " + out);
+    }
+}